@@ -0,0 +1,355 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single pass, table driven version of the ExtractHelper.cleanData / cleanDataText chain.
+ *
+ * In one scan it strips characters that are invalid in XML 1.0, escapes double quotes,
+ * replaces the delimiter with a space, collapses tab/CR/LF runs into ". " and (for
+ * cleanData) replaces &amp;, &lt; and &gt; with "-". The output is the same as running
+ * the individual ExtractHelper methods one after another. Input that needs no cleaning
+ * is returned as is without allocating anything. The chain replaces the delimiter as a
+ * regular expression, so a delimiter that is a regex metacharacter (such as the default
+ * |) is cleaned by the chain itself to give the same output.
+ *
+ * A cleaner for a literal delimiter (the LITERAL_DELIMITER setting) replaces the delimiter
+ * as plain text instead - as a regular expression the default | matches between every
+ * character and leaves the delimiter in the cell.
+ *
+ * Text that is too big to hold in one String (such as a CLOB) can be cleaned a piece at a
+ * time through a TextStream, giving the same output as cleaning it in one go.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public final class DataCleaner {
+
+    // CHARACTER CLASSES - ONLY THE FIRST SIX ARE USED IN THE ASCII TABLE
+    private static final byte KEEP = 0;
+    private static final byte DROP = 1;
+    private static final byte QUOTE = 2;
+    private static final byte DELIM = 3;
+    private static final byte BREAK = 4;
+    private static final byte MARKUP = 5;
+    private static final byte PAIR = 6;
+
+    private static final ConcurrentHashMap<String, DataCleaner> CLEANERS = new ConcurrentHashMap<String, DataCleaner>();
+
+    private final byte[] table = new byte[128];
+    private final String delimiter;
+    private final char delimiterChar;
+    private final boolean replaceMarkup;
+    private final boolean literalDelimiter;
+
+    // delimiters the scan can't reproduce go through the original chain - see usesChain
+    private final boolean useChain;
+
+    // single characters the chain's replaceAll does not match literally
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    public DataCleaner(String delimiter, boolean replaceMarkup) {
+        this(delimiter, replaceMarkup, false);
+    }
+
+    public DataCleaner(String delimiter, boolean replaceMarkup, boolean literalDelimiter) {
+        this.delimiter = delimiter;
+        this.replaceMarkup = replaceMarkup;
+        this.literalDelimiter = literalDelimiter;
+        this.useChain = usesChain(delimiter, literalDelimiter);
+        this.delimiterChar = useChain ? 0 : delimiter.charAt(0);
+
+        // order matters - it mirrors the order of the steps in the chain
+        for (char c = 0; c < 128; c++) {
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+                table[c] = DROP;
+            } else if (c == '"') {
+                table[c] = QUOTE;
+            } else if (c == delimiterChar) {
+                table[c] = DELIM;
+            } else if (c == '\t' || c == '\n' || c == '\r') {
+                table[c] = BREAK;
+            } else if (replaceMarkup && (c == '&' || c == '<' || c == '>')) {
+                table[c] = MARKUP;
+            } else {
+                table[c] = KEEP;
+            }
+        }
+    }
+
+    /*
+     * True for multi character delimiters, delimiters the chain would strip or escape before replacing them
+     * and regex metacharacters, which replaceAll does not replace literally (unless the delimiter is replaced literally)
+     */
+    private static boolean usesChain(String delimiter, boolean literalDelimiter) {
+        if (delimiter.length() != 1) {
+            return true;
+        }
+        char c = delimiter.charAt(0);
+        return c == '"' || Character.isSurrogate(c) || c >= 0xFFFE || (!literalDelimiter && REGEX_METACHARACTERS.indexOf(c) >= 0);
+    }
+
+    /*
+     * Shared cleaner for a delimiter - replaceMarkup is true for cleanData and false for cleanDataText
+     */
+    public static DataCleaner forDelimiter(String delimiter, boolean replaceMarkup) {
+        return forDelimiter(delimiter, replaceMarkup, false);
+    }
+
+    /*
+     * Shared cleaner for a delimiter, replaced as plain text when literalDelimiter is true
+     */
+    public static DataCleaner forDelimiter(String delimiter, boolean replaceMarkup, boolean literalDelimiter) {
+        String key = (replaceMarkup ? "M" : "T") + (literalDelimiter ? "L" : "R") + delimiter;
+        DataCleaner cleaner = CLEANERS.get(key);
+        if (cleaner == null) {
+            cleaner = new DataCleaner(delimiter, replaceMarkup, literalDelimiter);
+            CLEANERS.putIfAbsent(key, cleaner);
+        }
+        return cleaner;
+    }
+
+    /*
+     * Returns the cleaned data, or the same String when nothing needs cleaning
+     */
+    public String clean(String data) {
+        if (useChain) {
+            return cleanWithChain(data);
+        }
+        if (!needsCleaning(data)) {
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(data.length() + 16);
+        appendCleaned(data, sb, new State());
+        return sb.toString();
+    }
+
+    /*
+     * Appends the cleaned data straight onto the given buffer
+     */
+    public void appendTo(String data, StringBuilder out) {
+        if (useChain) {
+            out.append(cleanWithChain(data));
+        } else if (!needsCleaning(data)) {
+            out.append(data);
+        } else {
+            appendCleaned(data, out, new State());
+        }
+    }
+
+    /*
+     * Starts cleaning a text that will be passed in as a series of pieces
+     */
+    public TextStream openStream() {
+        return new TextStream();
+    }
+
+    private boolean needsCleaning(String data) {
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            byte charClass = classify(data, i);
+            if (charClass == PAIR) {
+                i++;
+            } else if (charClass != KEEP) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendCleaned(String data, StringBuilder out, State state) {
+        int length = data.length();
+
+        // last two characters seen after stripping, quote escaping and delimiter replacement -
+        // these decide how a run of tabs/CRs/LFs is collapsed (see ExtractHelper.replaceCR_LF)
+        char prev1 = state.prev1;
+        char prev2 = state.prev2;
+
+        int i = 0;
+
+        // A RUN CARRIED OVER FROM THE PREVIOUS PIECE HAS ALREADY BEEN REPLACED
+        if (state.inRun) {
+            i = skipRun(data, i);
+            state.inRun = (i == length);
+        }
+        int keepFrom = i;
+        while (i < length) {
+            char c = data.charAt(i);
+            byte charClass = classify(data, i);
+
+            if (charClass == KEEP || charClass == PAIR) {
+                prev2 = prev1;
+                prev1 = c;
+                i += (charClass == PAIR) ? 2 : 1;
+                continue;
+            }
+
+            // FLUSH UNCHANGED CHARACTERS BEFORE THIS ONE
+            out.append(data, keepFrom, i);
+            i++;
+
+            switch (charClass) {
+                case QUOTE:
+                    out.append("\"\"");
+                    prev2 = '"';
+                    prev1 = '"';
+                    break;
+                case DELIM:
+                    out.append(' ');
+                    prev2 = prev1;
+                    prev1 = ' ';
+                    break;
+                case MARKUP:
+                    out.append('-');
+                    prev2 = prev1;
+                    prev1 = c;
+                    break;
+                case BREAK:
+                    // SKIP THE WHOLE RUN - INVALID CHARACTERS INSIDE IT ARE STRIPPED FIRST SO DON'T END IT
+                    i = skipRun(data, i);
+                    state.inRun = (i == length);
+                    if (prev1 == '.') {
+                        // ".\n" -> ". "
+                        out.append(' ');
+                    } else if (prev1 != ' ' || prev2 != '.') {
+                        // "\n" -> ". ", while ". \n" -> ". " drops the run altogether
+                        out.append(". ");
+                    }
+                    prev2 = prev1;
+                    prev1 = c;
+                    break;
+                default:
+                    // DROP
+                    break;
+            }
+            keepFrom = i;
+        }
+        out.append(data, keepFrom, length);
+        state.prev1 = prev1;
+        state.prev2 = prev2;
+    }
+
+    private int skipRun(String data, int i) {
+        int length = data.length();
+        while (i < length) {
+            byte next = classify(data, i);
+            if (next != BREAK && next != DROP) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private byte classify(String data, int i) {
+        char c = data.charAt(i);
+        if (c < 128) {
+            return table[c];
+        }
+        if (c == delimiterChar) {
+            return DELIM;
+        }
+        if (c >= 0xD800 && c <= 0xDFFF) {
+            // only a high surrogate directly followed by a low surrogate is valid
+            if (c <= 0xDBFF && i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+                return PAIR;
+            }
+            return DROP;
+        }
+        return c >= 0xFFFE ? DROP : KEEP;
+    }
+
+    private String cleanWithChain(String data) {
+        data = ExtractHelper.stripInvalidXMLChars(data);
+        data = ExtractHelper.escapeDoubleQuotes(data);
+        data = literalDelimiter ? ExtractHelper.replaceDelimiterLiterally(data, delimiter) : ExtractHelper.replaceDelimiter(data, delimiter);
+        data = ExtractHelper.replaceCR_LF(data);
+        if (replaceMarkup) {
+            data = ExtractHelper.replaceAmpersand(data);
+            data = ExtractHelper.replaceLessThan(data);
+            data = ExtractHelper.replaceMoreThan(data);
+        }
+        return data;
+    }
+
+    /*
+     * What appendCleaned needs to carry from one piece of a text to the next
+     */
+    private static final class State {
+
+        private char prev1 = 0;
+        private char prev2 = 0;
+        private boolean inRun = false;
+    }
+
+    /**
+     * Cleans a text handed over in pieces. Runs of tabs/CRs/LFs and surrogate pairs that
+     * are split between two pieces come out the same as if the text had been cleaned whole.
+     */
+    public final class TextStream {
+
+        private final State state = new State();
+        private char pendingHighSurrogate = 0;
+
+        // the chain can only work on the whole text
+        private final StringBuilder whole = useChain ? new StringBuilder() : null;
+
+        private TextStream() {
+        }
+
+        /*
+         * Cleans the next piece of the text onto the given buffer
+         */
+        public void append(char[] chars, int length, StringBuilder out) {
+            if (length <= 0) {
+                return;
+            }
+            if (whole != null) {
+                whole.append(chars, 0, length);
+                return;
+            }
+
+            // HOLD BACK A HIGH SURROGATE AT THE END - IT IS ONLY VALID IF THE NEXT PIECE STARTS WITH A LOW ONE
+            int end = Character.isHighSurrogate(chars[length - 1]) ? length - 1 : length;
+            String piece;
+            if (pendingHighSurrogate != 0) {
+                piece = new StringBuilder(end + 1).append(pendingHighSurrogate).append(chars, 0, end).toString();
+            } else {
+                piece = new String(chars, 0, end);
+            }
+            pendingHighSurrogate = (end < length) ? chars[end] : 0;
+            appendCleaned(piece, out, state);
+        }
+
+        /*
+         * Cleans whatever is left once the last piece has been passed in
+         */
+        public void finish(StringBuilder out) {
+            if (whole != null) {
+                out.append(cleanWithChain(whole.toString()));
+                whole.setLength(0);
+            } else if (pendingHighSurrogate != 0) {
+                appendCleaned(String.valueOf(pendingHighSurrogate), out, state);
+                pendingHighSurrogate = 0;
+            }
+        }
+    }
+}
@@ -247,17 +247,17 @@ public class ExtractHelper {
         Logger.getLogger("MAIN_LOG").log(level, message);
     }
 
+    private static final Pattern XML10_INVALID_CHARS = Pattern.compile("[^"
+            + "\u0009\r\n"
+            + "\u0020-\uD7FF"
+            + "\uE000-\uFFFD"
+            + "\ud800\udc00-\udbff\udfff"
+            + "]");
+
     public static String stripInvalidXMLChars(String data) {
-        String xml10pattern = "[^"
-                + "\u0009\r\n"
-                + "\u0020-\uD7FF"
-                + "\uE000-\uFFFD"
-                + "\ud800\udc00-\udbff\udfff"
-                + "]";
-        Pattern p = Pattern.compile(xml10pattern);
-        Matcher m = p.matcher(data);
-        while (m.find()) {
-            data = data.replaceAll(xml10pattern, "");
+        Matcher m = XML10_INVALID_CHARS.matcher(data);
+        if (m.find()) {
+            data = m.replaceAll("");
         }
         return data;
     }
@@ -290,20 +290,22 @@ public class ExtractHelper {
         return data;
     }
 
+    // replaceDelimiter matches the delimiter as a regex - the default | matches between every character
+    public static String replaceDelimiterLiterally(String data, String delimiter) {
+        if (data.contains(delimiter)) {
+            data = data.replace(delimiter, " ");
+        }
+        return data;
+    }
+
+    // single pass equivalent of cleanDataText followed by replaceAmpersand, replaceLessThan and replaceMoreThan
     public static String cleanData(String strData, String DELIMITER) {
-        strData = cleanDataText(strData, DELIMITER);
-        strData = ExtractHelper.replaceAmpersand(strData);
-        strData = ExtractHelper.replaceLessThan(strData);
-        strData = ExtractHelper.replaceMoreThan(strData);
-        return strData;
+        return DataCleaner.forDelimiter(DELIMITER, true).clean(strData);
     }
 
+    // single pass equivalent of stripInvalidXMLChars, escapeDoubleQuotes, replaceDelimiter and replaceCR_LF
     public static String cleanDataText(String strData, String DELIMITER) {  // Method was created for Chevron for ntext field.
-        strData = stripInvalidXMLChars(strData);
-        strData = escapeDoubleQuotes(strData);
-        strData = replaceDelimiter(strData, DELIMITER);
-        strData = ExtractHelper.replaceCR_LF((strData));
-        return strData;
+        return DataCleaner.forDelimiter(DELIMITER, false).clean(strData);
     }
 
     public static String replaceAmpersand(String data) {
@@ -349,7 +351,7 @@ public class ExtractHelper {
 
     // if user puts in Date==DateTime, we will use DateTime as the column name
     // no == in column name, means we use the specified entry with no changes
-    private static String checkForMappedElementName(String element) {
+    public static String checkForMappedElementName(String element) {
         String elementMappedName = "";
         if (element.contains("==")) {
             String[] elementNameArray = element.split("==");
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * UTF-8 output file written through a FileChannel.
+ *
+ * Text is encoded by hand into a small staging array, copied into a large direct buffer
+ * in blocks, and the direct buffer is handed to the channel in one write whenever it
+ * fills up - there is no CharsetEncoder, no temporary direct buffer inside the JDK and
+ * no lock per call as with PrintStream. Bytes that are already encoded (gzip output, blocks
+ * encoded by another thread) go into the same buffer through getStream(). The
+ * buffers are kept in a pool and reused by the next file once a sink is closed.
+ *
+ * A sink is not thread safe - callers that share one have to lock it themselves.
+ *
+ * The sync policy says how often the data is forced to the disk -
+ *
+ * NONE - never, the data is left to the operating system (the old behaviour).
+ * CLOSE - once, when the file is closed.
+ * a number - every that many MB written and when the file is closed.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class OutputSink extends Writer {
+
+    public static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    public static final long SYNC_NEVER = -1;
+    public static final long SYNC_ON_CLOSE = 0;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final FileChannel channel;
+    private final long syncBytes;
+    private ByteBuffer buffer;
+    private long bytesSinceSync = 0;
+    private long bytesWritten = 0;
+
+    // text is encoded into the staging array and copied into the direct buffer in blocks
+    private final byte[] bytes = new byte[STAGING_SIZE];
+    private final char[] chars = new char[STAGING_SIZE];
+    private int count = 0;
+
+    // high surrogate at the end of the last write, waiting for its low surrogate
+    private char highSurrogate = 0;
+
+    public OutputSink(File file, long syncBytes) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.syncBytes = syncBytes;
+        ByteBuffer free = freeBuffers.poll();
+        this.buffer = (free != null) ? free : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /*
+     * Converts a sync setting (NONE, CLOSE or a number of MB) to the number of bytes between syncs
+     */
+    public static long parseSync(String sync) {
+        String value = (sync == null) ? "NONE" : sync.trim().toUpperCase();
+        if (value.equals("NONE")) {
+            return SYNC_NEVER;
+        } else if (value.equals("CLOSE")) {
+            return SYNC_ON_CLOSE;
+        }
+        try {
+            return Math.max(Long.parseLong(value), 1) * 1024 * 1024;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown sync policy " + sync + " (expected NONE, CLOSE or a number of MB)");
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        char[] one = {(char) c};
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, chars.length);
+            str.getChars(off, off + count, chars, 0);
+            write(chars, 0, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        byte[] bytes = this.bytes;
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            // ROOM FOR THE LONGEST SEQUENCE
+            if (bytes.length - count < 4) {
+                stage();
+            }
+
+            // ASCII RUN STRAIGHT INTO THE STAGING ARRAY
+            if (highSurrogate == 0) {
+                int n = count;
+                int asciiEnd = Math.min(end, i + bytes.length - n);
+                while (i < asciiEnd && cbuf[i] < 0x80) {
+                    bytes[n++] = (byte) cbuf[i++];
+                }
+                count = n;
+                if (i == end || bytes.length - count < 4) {
+                    continue;
+                }
+            }
+            encode(cbuf[i++]);
+        }
+    }
+
+    private void encode(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            // UNPAIRED SURROGATE - SAME REPLACEMENT AS THE JDK ENCODER, THEN THE CHAR ITSELF
+            bytes[count++] = (byte) '?';
+        }
+
+        if (c < 0x80) {
+            bytes[count++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[count++] = (byte) (0xC0 | (c >> 6));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[count++] = (byte) '?';
+        } else {
+            bytes[count++] = (byte) (0xE0 | (c >> 12));
+            bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /*
+     * Copies the encoded bytes into the direct buffer in one go
+     */
+    private void stage() throws IOException {
+        int off = 0;
+        while (off < count) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int length = Math.min(count - off, buffer.remaining());
+            buffer.put(bytes, off, length);
+            off += length;
+        }
+        count = 0;
+    }
+
+    /*
+     * Writes bytes that are already encoded
+     */
+    public void writeBytes(byte[] b, int off, int len) throws IOException {
+        stage();
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /*
+     * Hands the buffer to the channel, forcing it to disk when the sync policy says so
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        bytesWritten += count;
+        bytesSinceSync += count;
+        if (syncBytes > 0 && bytesSinceSync >= syncBytes) {
+            channel.force(false);
+            bytesSinceSync = 0;
+        }
+    }
+
+    /*
+     * Hands what is buffered to the operating system - the sync policy decides when it reaches the disk
+     */
+    @Override
+    public void flush() throws IOException {
+        stage();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                bytes[count++] = (byte) '?';
+            }
+            stage();
+            drain();
+            if (syncBytes != SYNC_NEVER) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+            buffer.clear();
+            freeBuffers.add(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes handed to the file so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten + count + (buffer == null ? 0 : buffer.position());
+    }
+
+    /**
+     * @return a byte stream into the same file, for data that is already encoded
+     */
+    public OutputStream getStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                byte[] one = {(byte) b};
+                writeBytes(one, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeBytes(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                OutputSink.this.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                OutputSink.this.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses on a pool of worker threads (like pigz).
+ *
+ * The data is cut into blocks that are each compressed as a complete gzip member on
+ * the worker pool, and the members are written out in order. A file made of several
+ * gzip members is a valid gzip file, so the output can be read by gunzip, zcat,
+ * GZIPInputStream and so on. At most maxInFlight blocks are queued for compression
+ * before write() waits for the oldest one to be finished.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxInFlight;
+
+    // compressed members waiting to be written, oldest first
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final ConcurrentLinkedQueue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private boolean anyMember = false;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int level, int maxInFlight) {
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        pending.add(executor.submit(new Member(block, blockLength)));
+        anyMember = true;
+        block = freeBlocks.poll();
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+        }
+        blockLength = 0;
+
+        // DON'T LET THE COMPRESSION QUEUE GROW WITHOUT LIMIT
+        while (pending.size() > maxInFlight) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        Future<byte[]> member = pending.poll();
+        try {
+            out.write(member.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for compression", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Compression failed", ex.getCause());
+        }
+    }
+
+    /*
+     * Compresses whatever has been written so far and writes it out. Each flush ends a
+     * gzip member, so it should only be called when really needed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // AN EMPTY FILE STILL NEEDS ONE (EMPTY) MEMBER TO BE A VALID GZIP FILE
+            if (blockLength > 0 || !anyMember) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        } finally {
+            // MAKE SURE NO WORKER IS LEFT HOLDING ON TO THIS STREAM AFTER A FAILURE
+            for (Future<byte[]> member : pending) {
+                member.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    /*
+     * Compresses one block into a complete gzip member
+     */
+    private class Member implements Callable<byte[]> {
+
+        private final byte[] data;
+        private final int length;
+
+        Member(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 3 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024) {
+                {
+                    def.setLevel(level);
+                }
+            };
+            gzip.write(data, 0, length);
+            gzip.close();
+            freeBlocks.add(data);
+            return compressed.toByteArray();
+        }
+    }
+}
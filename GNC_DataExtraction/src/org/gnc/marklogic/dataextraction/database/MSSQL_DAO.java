@@ -46,6 +46,9 @@ public class MSSQL_DAO extends DAO {
                 conn.close();
             } catch (SQLException ex) {
                 Logger.getLogger(MSSQL_DAO.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                // SO THE CONNECTION CAN BE OPENED AGAIN
+                conn = null;
             }
         }
     }
@@ -45,6 +45,9 @@ public class ORACLE_DAO extends DAO {
                 conn.close();
             } catch (SQLException ex) {
                 Logger.getLogger(ORACLE_DAO.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                // SO THE CONNECTION CAN BE OPENED AGAIN
+                conn = null;
             }
         }
     }
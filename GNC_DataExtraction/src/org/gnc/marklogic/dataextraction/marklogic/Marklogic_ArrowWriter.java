@@ -0,0 +1,165 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.gnc.marklogic.dataextraction.ExtractHelper;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Writes the rows of the MarkLogic workers to an Arrow IPC file.
+ *
+ * Every element column is a Utf8 column named like the DSV header. The raw element
+ * values go into the column vectors without the cleaning done for the DSV file, and
+ * an element that is missing or empty is null. Every batchSize rows (MARKLOGIC_PAGE_SIZE)
+ * the vectors are written out as one record batch, so consumers can memory map the
+ * file and read the batches without any parsing. Rows come out in whatever order the
+ * documents were done.
+ *
+ * The values are encoded in the worker threads, only filling the vectors is done
+ * under the lock.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_ArrowWriter extends Marklogic_Output {
+
+    private final String path;
+    private final int batchSize;
+    private final BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+    private final VectorSchemaRoot root;
+    private final VarCharVector[] vectors;
+    private final FileChannel channel;
+    private final ArrowFileWriter out;
+
+    private int rowsInBatch = 0;
+    private long rowsWritten = 0;
+    private long batchesWritten = 0;
+
+    public Marklogic_ArrowWriter(String path, ArrayList<String> elements, int batchSize) throws IOException {
+        this.path = path;
+        this.batchSize = Math.max(batchSize, 1);
+
+        List<Field> fields = new ArrayList<Field>();
+        for (String element : elements) {
+            fields.add(new Field(ExtractHelper.checkForMappedElementName(element), FieldType.nullable(new ArrowType.Utf8()), null));
+        }
+
+        // ONE SET OF VECTORS, REUSED FOR EVERY RECORD BATCH
+        root = VectorSchemaRoot.create(new Schema(fields), allocator);
+        List<FieldVector> fieldVectors = root.getFieldVectors();
+        vectors = new VarCharVector[fieldVectors.size()];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = (VarCharVector) fieldVectors.get(i);
+            vectors[i].allocateNew();
+        }
+
+        channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        out = new ArrowFileWriter(root, new DictionaryProvider.MapDictionaryProvider(), channel);
+        out.start();
+    }
+
+    @Override
+    public void write(String uri, List<String[]> rows) throws IOException {
+
+        // ENCODE OUTSIDE THE LOCK - ROWS WITHOUT ANY VALUE ARE LEFT OUT, AS IN THE DSV FILE
+        List<byte[][]> encoded = new ArrayList<byte[][]>(rows.size());
+        for (String[] values : rows) {
+            byte[][] row = new byte[values.length][];
+            boolean anyValue = false;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && !values[i].trim().equals("")) {
+                    row[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                    anyValue = true;
+                }
+            }
+            if (anyValue) {
+                encoded.add(row);
+            }
+        }
+        if (encoded.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            for (byte[][] row : encoded) {
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] != null) {
+                        vectors[i].setSafe(rowsInBatch, row[i]);
+                    }
+                }
+                rowsInBatch++;
+                rowsWritten++;
+                if (rowsInBatch == batchSize) {
+                    writeBatch();
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes the rows collected so far as one record batch and clears the vectors for the next one
+     */
+    private void writeBatch() throws IOException {
+        if (rowsInBatch == 0) {
+            return;
+        }
+        root.setRowCount(rowsInBatch);
+        out.writeBatch();
+        for (VarCharVector vector : vectors) {
+            vector.reset();
+        }
+        rowsInBatch = 0;
+        batchesWritten++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeBatch();
+            out.end();
+        } finally {
+            out.close();
+            channel.close();
+            root.close();
+            allocator.close();
+        }
+        log(Level.INFO, rowsWritten + " rows written to " + path + " in " + batchesWritten + " Arrow record batches", true);
+    }
+}
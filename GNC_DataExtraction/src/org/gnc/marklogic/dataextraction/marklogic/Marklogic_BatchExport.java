@@ -0,0 +1,156 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.BatchFailureListener;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.ExportListener;
+import com.marklogic.client.datamovement.QueryBatch;
+import com.marklogic.client.datamovement.QueryBatchException;
+import com.marklogic.client.datamovement.QueryBatchListener;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.datamovement.QueryFailureListener;
+import com.marklogic.client.document.DocumentRecord;
+import com.marklogic.client.document.XMLDocumentManager;
+import com.marklogic.client.query.RawCombinedQueryDefinition;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Extracts the documents matching the query with a Data Movement SDK QueryBatcher
+ * instead of paging through search results.
+ *
+ * The batcher reads the matching URIs from every forest of the database and hands the
+ * batches to the hosts that hold them, so the work is spread over the whole cluster
+ * and no request has to skip over deep result offsets. URI reads and document reads
+ * all run at the merge timestamp of the first request (consistent snapshot), so the
+ * export sees the database as it was when the job started.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_BatchExport {
+
+    private final DatabaseClient mlClient;
+    private final RawCombinedQueryDefinition query;
+    private final int batchSize;
+    private final int threads;
+    private final ArrayList<String> elements;
+    private final Marklogic_Output out;
+    private final XMLDocumentManager docMgr;
+    private final String ROOT_NODE;
+    private final Marklogic_StreamingExtractor extractor;
+    private final Marklogic_Transform transform;
+
+    private final AtomicLong docsProcessed = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    public Marklogic_BatchExport(DatabaseClient mlClient, RawCombinedQueryDefinition query, int batchSize, int threads, ArrayList<String> elements,
+            Marklogic_Output out, XMLDocumentManager docMgr, String ROOT_NODE, Marklogic_StreamingExtractor extractor, Marklogic_Transform transform) {
+        this.mlClient = mlClient;
+        this.query = query;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.elements = elements;
+        this.out = out;
+        this.docMgr = docMgr;
+        this.ROOT_NODE = ROOT_NODE;
+        this.extractor = extractor;
+        this.transform = transform;
+    }
+
+    /*
+     * Runs the export and waits for it to finish
+     */
+    public void export() {
+        DataMovementManager dmm = mlClient.newDataMovementManager();
+
+        // EVERY DOCUMENT IS READ FROM THE HOST OF ITS FOREST AT THE SNAPSHOT TIMESTAMP
+        ExportListener exportListener = new ExportListener()
+                .withConsistentSnapshot()
+                .onDocumentReady(new ProcessDocument())
+                .onFailure(new BatchFailure());
+
+        QueryBatcher batcher = dmm.newQueryBatcher(query)
+                .withJobName("GNC_DataExtraction")
+                .withBatchSize(batchSize)
+                .withThreadCount(threads)
+                .withConsistentSnapshot()
+                .onUrisReady(exportListener)
+                .onUrisReady(new Progress())
+                .onQueryFailure(new QueryFailure());
+
+        log(Level.INFO, "Starting QueryBatcher export with batches of " + batchSize + " on " + threads + " threads", true);
+        dmm.startJob(batcher);
+        batcher.awaitCompletion();
+        dmm.stopJob(batcher);
+        dmm.release();
+
+        log(Level.INFO, "QueryBatcher export complete: " + docsProcessed.get() + " documents processed", true);
+        if (failedBatches.get() > 0) {
+            log(Level.SEVERE, failedBatches.get() + " batches failed - see log for details", true);
+        }
+    }
+
+    /*
+     * Writes out the row(s) of one document, on the batcher thread that read it
+     */
+    private class ProcessDocument implements Consumer<DocumentRecord> {
+
+        @Override
+        public void accept(DocumentRecord document) {
+            new Marklogic_ProcessDoc(document, elements, out, docMgr, ROOT_NODE, extractor, transform).run();
+            docsProcessed.incrementAndGet();
+        }
+    }
+
+    /*
+     * Logs progress as URI batches come in
+     */
+    private static class Progress implements QueryBatchListener {
+
+        @Override
+        public void processEvent(QueryBatch batch) {
+            log(Level.INFO, "Batch " + batch.getJobBatchNumber() + " ready, " + batch.getJobResultsSoFar() + " URIs so far", batch.getJobBatchNumber() % 10 == 0);
+        }
+    }
+
+    private class BatchFailure implements BatchFailureListener<QueryBatch> {
+
+        @Override
+        public void processFailure(QueryBatch batch, Throwable throwable) {
+            failedBatches.incrementAndGet();
+            log(Level.SEVERE, "Unable to read batch " + batch.getJobBatchNumber() + ": " + throwable.getMessage(), true);
+        }
+    }
+
+    private class QueryFailure implements QueryFailureListener {
+
+        @Override
+        public void processFailure(QueryBatchException failure) {
+            failedBatches.incrementAndGet();
+            log(Level.SEVERE, "Unable to read URIs from forest " + failure.getForest() + ": " + failure.getMessage(), true);
+        }
+    }
+}
@@ -21,7 +21,6 @@ package org.gnc.marklogic.dataextraction.marklogic;
 
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.DatabaseClientFactory;
-import com.marklogic.client.DatabaseClientFactory.Authentication;
 import com.marklogic.client.document.DocumentPage;
 import com.marklogic.client.document.XMLDocumentManager;
 import com.marklogic.client.io.StringHandle;
@@ -30,19 +29,22 @@ import com.marklogic.client.query.RawCombinedQueryDefinition;
 import com.marklogic.client.query.RawQueryByExampleDefinition;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.transform.TransformerConfigurationException;
 import org.gnc.marklogic.dataextraction.DataExtraction;
 import org.gnc.marklogic.dataextraction.ExtractHelper;
 import org.gnc.marklogic.dataextraction.LogFormatter;
+import org.gnc.marklogic.dataextraction.OutputSink;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.extractFileToList;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.getColumnHeadersStr;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
@@ -65,6 +67,19 @@ public class Marklogic_DataExtraction extends DataExtraction {
     private String MARKLOGIC_FILTERS_FILE;
     private String MARKLOGIC_NAME;
     private String MARKLOGIC_ROOT_NODE;
+    private String MARKLOGIC_PARSER;
+    private String MARKLOGIC_TRANSFORM;
+    private String MARKLOGIC_ROOT_NODE_MODE;
+    private int MARKLOGIC_THREADS;
+    private int MARKLOGIC_MAX_PAGES_IN_FLIGHT;
+    private int MARKLOGIC_PREFETCH_PAGES;
+    private String MARKLOGIC_EXTRACT_MODE;
+    private int MARKLOGIC_BATCH_SIZE;
+    private String MARKLOGIC_INDEXED_ELEMENTS;
+    private String MARKLOGIC_NAMESPACES;
+    private String MARKLOGIC_OUTPUT_MODE;
+    private String MARKLOGIC_OUTPUT_SYNC;
+    private String MARKLOGIC_OUTPUT_FORMAT;
     private String DELIMITER;
     private String MARKLOGIC_LOG_DIR;
     private DatabaseClient mlClient;
@@ -124,13 +139,22 @@ public class Marklogic_DataExtraction extends DataExtraction {
         LOGGER.setUseParentHandlers(false);
         log(Level.INFO, "STARTING NEW MARKLOGIC DATA EXTRACTION", true);
 
-        // CREATE THREADPOOL
-        int numThreads = Runtime.getRuntime().availableProcessors();
-        //int numThreads = 1;
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        // CHECK EXTRACT MODE
+        if (!MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("SEARCH") && !MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("QUERY_BATCHER")
+                && !MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("PROJECTION") && !MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("LEXICON")) {
+            log(Level.SEVERE, "Unknown MARKLOGIC_EXTRACT_MODE " + MARKLOGIC_EXTRACT_MODE + " (expected SEARCH, QUERY_BATCHER, PROJECTION or LEXICON)", true);
+            System.exit(1);
+        }
+
+        // PROJECTION CAN'T EXPLODE ON A ROOT NODE - THAT NEEDS THE WHOLE DOCUMENT
+        if ((MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("PROJECTION") || MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("LEXICON"))
+                && MARKLOGIC_ROOT_NODE != null && !MARKLOGIC_ROOT_NODE.equals("")) {
+            log(Level.WARNING, "MARKLOGIC_EXTRACT_MODE " + MARKLOGIC_EXTRACT_MODE + " can not be used with MARKLOGIC_ROOT_NODE - using QUERY_BATCHER", true);
+            MARKLOGIC_EXTRACT_MODE = "QUERY_BATCHER";
+        }
 
         // GET DB CONNECTION
-        mlClient = DatabaseClientFactory.newClient(MARKLOGIC_HOST, MARKLOGIC_PORT, MARKLOGIC_NAME, MARKLOGIC_USERNAME, MARKLOGIC_PASSWORD, Authentication.DIGEST);
+        mlClient = DatabaseClientFactory.newClient(MARKLOGIC_HOST, MARKLOGIC_PORT, MARKLOGIC_NAME, new DatabaseClientFactory.DigestAuthContext(MARKLOGIC_USERNAME, MARKLOGIC_PASSWORD));
         XMLDocumentManager docMgr = mlClient.newXMLDocumentManager();
         docMgr.setPageLength(MARKLOGIC_PAGE_SIZE);
 
@@ -140,37 +164,127 @@ public class Marklogic_DataExtraction extends DataExtraction {
         ArrayList<String> elements = extractFileToList(MARKLOGIC_ELEMENTS_FILE);
         log(Level.INFO, "Elements to extract: " + elements, true);
 
-        // CREATE OUTPUT FILE
-        PrintStream out = new PrintStream(MARKLOGIC_OUTPUT_FILE_PATH, "UTF-8");
-
-        // PRINT OUT HEADERS
+        // CREATE OUTPUT FILE - THE DSV WRITER PRINTS OUT THE HEADERS
         String headers = getColumnHeadersStr(elements, DELIMITER);
+        long syncBytes = 0;
+        try {
+            syncBytes = OutputSink.parseSync(MARKLOGIC_OUTPUT_SYNC);
+        } catch (IllegalArgumentException ex) {
+            log(Level.SEVERE, "Unknown MARKLOGIC_OUTPUT_SYNC " + MARKLOGIC_OUTPUT_SYNC + " (expected NONE, CLOSE or a number of MB)", true);
+            System.exit(1);
+        }
+        Marklogic_Output out = null;
+        try {
+            if (MARKLOGIC_OUTPUT_FORMAT.equalsIgnoreCase("ARROW")) {
+                // ONE RECORD BATCH PER PAGE OF DOCUMENTS
+                out = new Marklogic_ArrowWriter(MARKLOGIC_OUTPUT_FILE_PATH, elements, MARKLOGIC_PAGE_SIZE);
+                log(Level.INFO, "Writing Arrow IPC file with record batches of " + MARKLOGIC_PAGE_SIZE + " rows", true);
+            } else if (MARKLOGIC_OUTPUT_FORMAT.equalsIgnoreCase("DSV")) {
+                out = new Marklogic_RowWriter(MARKLOGIC_OUTPUT_FILE_PATH, headers, MARKLOGIC_OUTPUT_MODE, DELIMITER, syncBytes);
+                log(Level.INFO, "Writing output in " + MARKLOGIC_OUTPUT_MODE.toUpperCase() + " mode", true);
+            } else {
+                log(Level.SEVERE, "Unknown MARKLOGIC_OUTPUT_FORMAT " + MARKLOGIC_OUTPUT_FORMAT + " (expected DSV or ARROW)", true);
+                System.exit(1);
+            }
+        } catch (IOException ex) {
+            log(Level.SEVERE, "Unable to create output file " + MARKLOGIC_OUTPUT_FILE_PATH + ": " + ex.getMessage(), true);
+            System.exit(1);
+        }
 
-        out.println(headers);
+        // ROOT NODE MODE - LAST KEEPS THE LAST ROOT NODE OF EACH DOC, EXPLODE GIVES A ROW FOR EVERY ONE
+        boolean hasRootNode = MARKLOGIC_ROOT_NODE != null && !MARKLOGIC_ROOT_NODE.equals("");
+        if (!MARKLOGIC_ROOT_NODE_MODE.equalsIgnoreCase("LAST") && !MARKLOGIC_ROOT_NODE_MODE.equalsIgnoreCase("EXPLODE")) {
+            log(Level.SEVERE, "Unknown MARKLOGIC_ROOT_NODE_MODE " + MARKLOGIC_ROOT_NODE_MODE + " (expected LAST or EXPLODE)", true);
+            System.exit(1);
+        }
+        boolean explode = hasRootNode && MARKLOGIC_ROOT_NODE_MODE.equalsIgnoreCase("EXPLODE");
+
+        // STREAMING PARSER - THE LAST ROOT NODE MODE NEEDS THE DOM, EXPLODE IS ALWAYS STREAMED
+        Marklogic_StreamingExtractor extractor = null;
+        if (explode) {
+            extractor = new Marklogic_StreamingExtractor(elements, MARKLOGIC_ROOT_NODE);
+            log(Level.INFO, "Exploding documents into one row per " + MARKLOGIC_ROOT_NODE, true);
+        } else if (MARKLOGIC_PARSER.equalsIgnoreCase("STAX")) {
+            if (hasRootNode) {
+                log(Level.WARNING, "MARKLOGIC_PARSER STAX can not be used with MARKLOGIC_ROOT_NODE - using DOM", true);
+            } else {
+                extractor = new Marklogic_StreamingExtractor(elements);
+            }
+        } else if (!MARKLOGIC_PARSER.equalsIgnoreCase("DOM")) {
+            log(Level.SEVERE, "Unknown MARKLOGIC_PARSER " + MARKLOGIC_PARSER + " (expected DOM or STAX)", true);
+            System.exit(1);
+        }
+        log(Level.INFO, "Parsing documents with " + (extractor == null ? "DOM" : "STAX"), true);
+
+        // ROOT NODE TRANSFORM - COMPILED ONCE FOR ALL DOCS
+        Marklogic_Transform transform = null;
+        if (hasRootNode && !explode) {
+            if (MARKLOGIC_TRANSFORM.equalsIgnoreCase("FLATTEN")) {
+                transform = new Marklogic_Transform();
+            } else if (MARKLOGIC_TRANSFORM.equalsIgnoreCase("XSLT")) {
+                try {
+                    transform = new Marklogic_Transform(new File(Marklogic_Transform.XSLT_FILE));
+                } catch (TransformerConfigurationException ex) {
+                    log(Level.SEVERE, "Unable to compile " + Marklogic_Transform.XSLT_FILE + ": " + ex.getMessage(), true);
+                    System.exit(1);
+                }
+            } else {
+                log(Level.SEVERE, "Unknown MARKLOGIC_TRANSFORM " + MARKLOGIC_TRANSFORM + " (expected XSLT or FLATTEN)", true);
+                System.exit(1);
+            }
+            log(Level.INFO, "Transforming root node docs with " + (transform.isNative() ? "native attribute flattening" : Marklogic_Transform.XSLT_FILE), true);
+        }
 
         // GET QUERY DEF
         RawCombinedQueryDefinition combinedquerydef = generateQuery(mlClient);
 
+        if (MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("PROJECTION")) {
+            // ONLY THE COLUMN VALUES COME BACK FROM THE SERVER
+            new Marklogic_ProjectionExport(mlClient, combinedquerydef, MARKLOGIC_BATCH_SIZE, MARKLOGIC_THREADS, elements, out, null).export();
+        } else if (MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("LEXICON")) {
+            // SAME AS PROJECTION BUT INDEXED COLUMNS COME FROM THE RANGE INDEXES
+            String[] indexes = Marklogic_ProjectionExport.resolveIndexes(mlClient, elements, MARKLOGIC_INDEXED_ELEMENTS, MARKLOGIC_NAMESPACES);
+            new Marklogic_ProjectionExport(mlClient, combinedquerydef, MARKLOGIC_BATCH_SIZE, MARKLOGIC_THREADS, elements, out, indexes).export();
+        } else if (MARKLOGIC_EXTRACT_MODE.equalsIgnoreCase("QUERY_BATCHER")) {
+            // URI BATCHES FROM EVERY FOREST, READ FROM THE HOST THAT HOLDS THEM
+            new Marklogic_BatchExport(mlClient, combinedquerydef, MARKLOGIC_BATCH_SIZE, MARKLOGIC_THREADS, elements, out, docMgr, MARKLOGIC_ROOT_NODE, extractor, transform).export();
+        } else {
+            searchPages(combinedquerydef, docMgr, elements, out, extractor, transform);
+        }
+        out.close();
+
+        mlClient.release();
+
+        log(Level.INFO, "Extraction complete", true);
+    }
+
+    /*
+     * Pages through the search results, processing the documents of each page on the shared pool
+     */
+    private void searchPages(RawCombinedQueryDefinition combinedquerydef, XMLDocumentManager docMgr, ArrayList<String> elements, Marklogic_Output out,
+            Marklogic_StreamingExtractor extractor, Marklogic_Transform transform) throws InterruptedException {
+
+        // CREATE THREADPOOL - ONE WORK STEALING POOL FOR THE DOCUMENTS OF ALL PAGES
+        ExecutorService executor = Executors.newWorkStealingPool(MARKLOGIC_THREADS);
+
+        // LIMIT THE NUMBER OF PAGES HELD IN MEMORY
+        Semaphore pagesInFlight = new Semaphore(MARKLOGIC_MAX_PAGES_IN_FLIGHT);
+        log(Level.INFO, "Processing documents on " + MARKLOGIC_THREADS + " threads with at most " + MARKLOGIC_MAX_PAGES_IN_FLIGHT + " pages in memory", true);
+
         // INIT VARIABLES
-        int start = 1;
         int docsProcessed = 0;
         long totalDocs = 0;
         DocumentPage documentPage = null;
         Marklogic_ProcessPage processPage;
 
-        // START SEARCHING
-        do {
-            documentPage = docMgr.search(combinedquerydef, start);
-
-            // GET TOTAL COUNT ON FIRST PASS
-            if (start == 1) {
-                totalDocs = documentPage.getTotalSize();
-                log(Level.INFO, "Found: " + totalDocs + " total documents", true);
-            }
+        // START SEARCHING - PAGES ARE REQUESTED AHEAD AND COME BACK IN ORDER
+        Marklogic_PagePrefetcher prefetcher = new Marklogic_PagePrefetcher(docMgr, combinedquerydef, MARKLOGIC_PAGE_SIZE, MARKLOGIC_PREFETCH_PAGES, pagesInFlight);
+        totalDocs = prefetcher.getTotalDocs();
+        log(Level.INFO, "Found: " + totalDocs + " total documents", true);
 
-            processPage = new Marklogic_ProcessPage(documentPage, elements, out, DELIMITER, docMgr, MARKLOGIC_ROOT_NODE);
-            Runnable worker = processPage;
-            executor.execute(worker);
+        while ((documentPage = prefetcher.next()) != null) {
+            processPage = new Marklogic_ProcessPage(documentPage, elements, out, docMgr, MARKLOGIC_ROOT_NODE, extractor, transform, executor, pagesInFlight);
+            processPage.submitDocs();
 
             // PRINT UPDATE OF PROGRESS
             //docsProcessed++;
@@ -180,19 +294,14 @@ public class Marklogic_DataExtraction extends DataExtraction {
                 log(Level.INFO, "Processed: " + docsProcessed + " of: " + totalDocs, true);
             }
             //}
-
-            start += documentPage.getPageSize();
-
-        } while (documentPage.hasNextPage());
-
-        executor.shutdown();
-        // wait until all threads are finish
-        while (!executor.isTerminated()) {
         }
 
-        mlClient.release();
-
-        log(Level.INFO, "Extraction complete", true);
+        // wait until all pages are finished
+        pagesInFlight.acquire(MARKLOGIC_MAX_PAGES_IN_FLIGHT);
+        prefetcher.shutdown();
+        prefetcher.logSummary();
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
     }
 
     // GENERATE QUERY
@@ -236,6 +345,40 @@ public class Marklogic_DataExtraction extends DataExtraction {
         MARKLOGIC_NAME = props.getProperty("MARKLOGIC_DB_NAME");
         DELIMITER = props.getProperty("DELIMITER", "|");
         MARKLOGIC_ROOT_NODE = props.getProperty("MARKLOGIC_ROOT_NODE");
+        MARKLOGIC_PARSER = props.getProperty("MARKLOGIC_PARSER", "DOM").trim();
+        MARKLOGIC_TRANSFORM = props.getProperty("MARKLOGIC_TRANSFORM", "XSLT").trim();
+        MARKLOGIC_ROOT_NODE_MODE = props.getProperty("MARKLOGIC_ROOT_NODE_MODE", "LAST").trim();
+        MARKLOGIC_EXTRACT_MODE = props.getProperty("MARKLOGIC_EXTRACT_MODE", "SEARCH").trim();
+        MARKLOGIC_INDEXED_ELEMENTS = props.getProperty("MARKLOGIC_INDEXED_ELEMENTS", "AUTO").trim();
+        MARKLOGIC_NAMESPACES = props.getProperty("MARKLOGIC_NAMESPACES", "").trim();
+        MARKLOGIC_OUTPUT_MODE = props.getProperty("MARKLOGIC_OUTPUT_MODE", "BUFFERED").trim();
+        MARKLOGIC_OUTPUT_SYNC = props.getProperty("MARKLOGIC_OUTPUT_SYNC", "NONE").trim();
+        MARKLOGIC_OUTPUT_FORMAT = props.getProperty("MARKLOGIC_OUTPUT_FORMAT", "DSV").trim();
+
+        try {
+            MARKLOGIC_BATCH_SIZE = Math.max(Integer.parseInt(props.getProperty("MARKLOGIC_BATCH_SIZE")), 1);
+        } catch (NumberFormatException nex) {
+            MARKLOGIC_BATCH_SIZE = 500;
+        }
+
+        try {
+            MARKLOGIC_THREADS = Math.max(Integer.parseInt(props.getProperty("MARKLOGIC_THREADS")), 1);
+        } catch (NumberFormatException nex) {
+            MARKLOGIC_THREADS = Runtime.getRuntime().availableProcessors();
+        }
+
+        try {
+            MARKLOGIC_PREFETCH_PAGES = Math.max(Integer.parseInt(props.getProperty("MARKLOGIC_PREFETCH_PAGES")), 1);
+        } catch (NumberFormatException nex) {
+            MARKLOGIC_PREFETCH_PAGES = 2;
+        }
+
+        // PAGES BEING FETCHED COUNT AS IN FLIGHT - LEAVE ROOM FOR AT LEAST ONE PAGE BEING PROCESSED
+        try {
+            MARKLOGIC_MAX_PAGES_IN_FLIGHT = Math.max(Integer.parseInt(props.getProperty("MARKLOGIC_MAX_PAGES_IN_FLIGHT")), MARKLOGIC_PREFETCH_PAGES + 1);
+        } catch (NumberFormatException nex) {
+            MARKLOGIC_MAX_PAGES_IN_FLIGHT = MARKLOGIC_PREFETCH_PAGES + 1;
+        }
 
         try {
             MARKLOGIC_PAGE_SIZE = Integer.parseInt(props.getProperty("MARKLOGIC_PAGE_SIZE"));
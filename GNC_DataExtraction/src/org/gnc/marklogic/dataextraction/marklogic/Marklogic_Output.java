@@ -0,0 +1,39 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the rows of the MarkLogic workers go.
+ *
+ * Each row is the raw value of every element column of one document (or of one root
+ * node when exploding). The rows of a document are always handed over together and
+ * write is called from all the worker threads at once.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public abstract class Marklogic_Output {
+
+    public abstract void write(String uri, List<String[]> rows) throws IOException;
+
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import com.marklogic.client.document.DocumentPage;
+import com.marklogic.client.document.XMLDocumentManager;
+import com.marklogic.client.query.QueryDefinition;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Keeps up to K search page requests running at once and hands the pages back in
+ * order.
+ *
+ * The first page is read straight away to get the total number of documents - the
+ * start of every other page is known from that and the page length. Each page takes
+ * one of the in-flight page permits before it is requested, so pages waiting to be
+ * processed count towards the limit as well.
+ *
+ * The time the search loop spends waiting for a page to arrive (network bound) and
+ * waiting for a permit because the documents of earlier pages are still being
+ * processed (CPU bound) is logged at the end, to help pick K.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_PagePrefetcher {
+
+    private final XMLDocumentManager docMgr;
+    private final QueryDefinition query;
+    private final long pageSize;
+    private final int prefetch;
+    private final Semaphore pagesInFlight;
+    private final ExecutorService fetchers;
+
+    // page requests in start order, oldest first
+    private final ArrayDeque<Future<DocumentPage>> pending = new ArrayDeque<Future<DocumentPage>>();
+    private DocumentPage firstPage;
+    private long totalDocs;
+    private long nextStart;
+
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private long pagesFetched = 0;
+    private long waitForPageNanos = 0;
+    private long waitForPermitNanos = 0;
+
+    public Marklogic_PagePrefetcher(XMLDocumentManager docMgr, QueryDefinition query, long pageSize, int prefetch, Semaphore pagesInFlight) throws InterruptedException {
+        this.docMgr = docMgr;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.prefetch = Math.max(prefetch, 1);
+        this.pagesInFlight = pagesInFlight;
+        this.fetchers = Executors.newFixedThreadPool(this.prefetch);
+
+        // FIRST PAGE GIVES THE TOTAL COUNT - EVERY OTHER START IS KNOWN FROM THAT
+        acquirePermit();
+        long startTime = System.nanoTime();
+        firstPage = docMgr.search(query, 1);
+        waitForPageNanos += System.nanoTime() - startTime;
+        fetchNanos.addAndGet(System.nanoTime() - startTime);
+        pagesFetched++;
+        totalDocs = firstPage.getTotalSize();
+        nextStart = 1 + pageSize;
+    }
+
+    /**
+     * @return the total number of documents matching the query
+     */
+    public long getTotalDocs() {
+        return totalDocs;
+    }
+
+    /*
+     * Returns the next page in order, or null after the last page. The page holds a
+     * permit that has to be given back once it has been processed.
+     */
+    public DocumentPage next() throws InterruptedException {
+        if (firstPage != null) {
+            DocumentPage page = firstPage;
+            firstPage = null;
+            requestPages();
+            return page;
+        }
+
+        requestPages();
+        Future<DocumentPage> oldest = pending.poll();
+        if (oldest == null) {
+            return null;
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            return oldest.get();
+        } catch (ExecutionException ex) {
+            // SAME AS WHEN THE SEARCH RUNS ON THIS THREAD
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Search page request failed", ex.getCause());
+        } finally {
+            waitForPageNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    /*
+     * Requests pages until K are on their way or there are no more pages
+     */
+    private void requestPages() throws InterruptedException {
+        while (pending.size() < prefetch && nextStart <= totalDocs) {
+            acquirePermit();
+            pending.add(fetchers.submit(new Fetch(nextStart)));
+            pagesFetched++;
+            nextStart += pageSize;
+        }
+    }
+
+    private void acquirePermit() throws InterruptedException {
+        long startTime = System.nanoTime();
+        pagesInFlight.acquire();
+        waitForPermitNanos += System.nanoTime() - startTime;
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (Future<DocumentPage> page : pending) {
+            page.cancel(true);
+        }
+        pending.clear();
+        fetchers.shutdown();
+        fetchers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Logs where the search loop spent its time
+     */
+    public void logSummary() {
+        log(Level.INFO, pagesFetched + " pages fetched with " + prefetch + " requests at a time, "
+                + TimeUnit.NANOSECONDS.toMillis(fetchNanos.get()) + " ms in search requests", true);
+        log(Level.INFO, "Search loop waited " + TimeUnit.NANOSECONDS.toMillis(waitForPageNanos) + " ms for pages (network bound) and "
+                + TimeUnit.NANOSECONDS.toMillis(waitForPermitNanos) + " ms for documents to be processed (CPU bound)", true);
+    }
+
+    /*
+     * Requests one page
+     */
+    private class Fetch implements Callable<DocumentPage> {
+
+        private final long start;
+
+        Fetch(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public DocumentPage call() {
+            long startTime = System.nanoTime();
+            try {
+                return docMgr.search(query, start);
+            } finally {
+                fetchNanos.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+    }
+}
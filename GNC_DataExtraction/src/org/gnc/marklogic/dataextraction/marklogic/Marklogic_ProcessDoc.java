@@ -22,30 +22,23 @@ package org.gnc.marklogic.dataextraction.marklogic;
 import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.document.XMLDocumentManager;
 import com.marklogic.client.io.DOMHandle;
+import com.marklogic.client.io.InputStreamHandle;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamSource;
 
 import org.gnc.marklogic.dataextraction.ExtractHelper;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -55,48 +48,67 @@ public class Marklogic_ProcessDoc implements Runnable {
 
     private DocumentRecord document;
     private ArrayList<String> elements;
-    private PrintStream out;
-    private final String DELIMITER;
+    private final Marklogic_Output out;
     private String ROOT_NODE;
     private XMLDocumentManager docMgr;
+    private final Marklogic_StreamingExtractor extractor;
+    private final Marklogic_Transform transform;
 
 
-    public Marklogic_ProcessDoc(DocumentRecord document, ArrayList<String> elements, PrintStream out, String DELIMITER, XMLDocumentManager docMgr, String ROOT_NODE) {
+    public Marklogic_ProcessDoc(DocumentRecord document, ArrayList<String> elements, Marklogic_Output out, XMLDocumentManager docMgr, String ROOT_NODE,
+            Marklogic_StreamingExtractor extractor, Marklogic_Transform transform) {
         this.document = document;
         this.elements = elements;
         this.out = out;
-        this.DELIMITER = DELIMITER;
         this.docMgr = docMgr;
         this.ROOT_NODE = ROOT_NODE;
+        this.extractor = extractor;
+        this.transform = transform;
 
     }
 
     public void run() {
         try {
             processDoc();
-        } catch (ParserConfigurationException | TransformerException | SAXException | IOException | InterruptedException ex) {
+        } catch (TransformerException | IOException | XMLStreamException ex) {
             Logger.getLogger(Marklogic_ProcessDoc.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    private void processDoc() throws ParserConfigurationException, TransformerConfigurationException, TransformerException, SAXException, IOException, InterruptedException {
+    private void processDoc() throws TransformerException, IOException, XMLStreamException {
+
+        // all rows of the document are handed to the writer together
+        List<String[]> rows = new ArrayList<String[]>();
+
+        // streaming parser -> pull the element values straight out of the content, no dom needed
+        if (extractor != null) {
+            InputStream in = readStream();
+            try {
+                if (extractor.isExploding()) {
+                    // one row per root node
+                    for (String[] row : extractor.extractRows(in, document.getUri())) {
+                        rows.add(row);
+                    }
+                } else {
+                    rows.add(extractor.extract(in));
+                }
+            } finally {
+                in.close();
+            }
+            out.write(document.getUri(), rows);
+            return;
+        }
 
         // read marklogic document into dom document
-        DOMHandle handle = new DOMHandle();
-        docMgr.read(document.getUri(), handle);
-        Document mlDoc = handle.get();
+        Document mlDoc = readDocument();
 
         // if root node is null or empty, avoid extra processing and just skip to printing out relevant elements from doc
         if (ROOT_NODE != null && !ROOT_NODE.equals("")) {
             NodeList nList = mlDoc.getElementsByTagName(ROOT_NODE);
 
-            // load transform for later use
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Transformer transformer = factory.newTransformer(new StreamSource(new File("transforms\\marklogic\\TRANSFORM.xslt")));
-
             // for each element with root name -> create new temp doc exploding from specified root (in memory only)
             for (int j = 0; j < nList.getLength(); j++) {
-                Document tempDoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                Document tempDoc = transform.newDocument();
 
                 // add specified root element to temp doc
                 Node rootNode = nList.item(j);
@@ -111,40 +123,64 @@ public class Marklogic_ProcessDoc implements Runnable {
                 // add parents of root element and parent's siblings to temp doc
                 tempNode = addParentsAndParentsSiblings(tempNode, rootNode, tempDoc);
 
-                // transform attributes to elements
-                tempDoc = transformDoc(tempNode, transformer);
+                // transform attributes to elements (compiled once, shared by all docs)
+                tempDoc = transform.transform(tempNode);
                 mlDoc = tempDoc;
             }
         }
 
-        printOutElements(mlDoc);
+        printOutElements(mlDoc, rows);
+        out.write(document.getUri(), rows);
 
     }
 
-    private void printOutElements(Document mlDoc) {
-
-        int columnCount = 1;
-        String output = "";
-
-        // loop through elements specified in elements_input_file and fetch each one from our temp doc where available
-        for (String elementName : elements) {
-            // get element value
-            String elementValue = getElementValue(mlDoc, elementName);
+    /*
+     * Parses the content that came back with the search page, only reading the document
+     * from the server again when the page did not carry it
+     */
+    private Document readDocument() {
+        try {
+            Document content = document.getContent(new DOMHandle()).get();
+            if (content != null && content.getDocumentElement() != null) {
+                return content;
+            }
+            ExtractHelper.log(Level.WARNING, "No page content for " + document.getUri() + " - reading document from server", false);
+        } catch (RuntimeException ex) {
+            ExtractHelper.log(Level.WARNING, "Unable to use page content for " + document.getUri() + " (" + ex.getMessage() + ") - reading document from server", false);
+        }
 
-            // add elementvalue to output
-            output = output.concat(elementValue);
+        DOMHandle handle = new DOMHandle();
+        docMgr.read(document.getUri(), handle);
+        return handle.get();
+    }
 
-            // add delimiter to outputrow unless last column in row
-            if (columnCount != elements.size()) {
-                output = output.concat(DELIMITER);
+    /*
+     * Same as readDocument but leaves the content unparsed for the streaming parser
+     */
+    private InputStream readStream() {
+        try {
+            InputStream content = document.getContent(new InputStreamHandle()).get();
+            if (content != null) {
+                return content;
             }
-            columnCount++;
+            ExtractHelper.log(Level.WARNING, "No page content for " + document.getUri() + " - reading document from server", false);
+        } catch (RuntimeException ex) {
+            ExtractHelper.log(Level.WARNING, "Unable to use page content for " + document.getUri() + " (" + ex.getMessage() + ") - reading document from server", false);
         }
 
-        // write outputrow to file
-        if (!output.trim().equals("")) {
-            out.println(output);
+        InputStreamHandle handle = new InputStreamHandle();
+        docMgr.read(document.getUri(), handle);
+        return handle.get();
+    }
+
+    private void printOutElements(Document mlDoc, List<String[]> rows) {
+
+        // loop through elements specified in elements_input_file and fetch each one from our temp doc where available
+        String[] values = new String[elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getElementValue(mlDoc, Marklogic_StreamingExtractor.getElementName(elements.get(i)));
         }
+        rows.add(values);
     }
 
 
@@ -174,14 +210,6 @@ public class Marklogic_ProcessDoc implements Runnable {
         return tempNode;
     }
 
-    private Document transformDoc(Node rootNode, Transformer transformer) throws TransformerConfigurationException, TransformerException {
-        DOMSource domInput = new DOMSource(rootNode);
-        DOMResult domOutput = new DOMResult();
-        transformer.transform(domInput, domOutput);
-        Document domDoc = (Document) domOutput.getNode();
-        return domDoc;
-    }
-
     private String getElementValue(Document domDoc, String elementName) {
         NodeList nodeList = domDoc.getElementsByTagName(elementName);
         String elementValue = "";
@@ -201,15 +229,6 @@ public class Marklogic_ProcessDoc implements Runnable {
             elementValue = "";
         }
 
-        // REMOVE CARRIAGE RETURNS/LINE FEEDS
-        elementValue = ExtractHelper.replaceCR_LF(elementValue);
-
-        // REMOVE DELIMITER IF POSSIBLE (DEFAULT PIPE)
-        try {
-            elementValue = elementValue.replaceAll("\\" + DELIMITER, "");
-        } catch (Exception ex) {
-        }
-
         return elementValue;
     }
 }
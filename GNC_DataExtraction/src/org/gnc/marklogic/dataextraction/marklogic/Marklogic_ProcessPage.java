@@ -22,55 +22,89 @@ package org.gnc.marklogic.dataextraction.marklogic;
 import com.marklogic.client.document.DocumentPage;
 import com.marklogic.client.document.DocumentRecord;
 import com.marklogic.client.document.XMLDocumentManager;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Hands the documents of a search page to the document executor shared by all pages.
+ *
+ * The page holds one of the in-flight page permits from the time it is fetched until
+ * the last of its documents has been written, so only a limited number of pages are
+ * kept in memory at once.
  *
  * @author Robert Kennedy, rkennedy@gennet.com
  */
-public class Marklogic_ProcessPage implements Runnable {
+public class Marklogic_ProcessPage {
 
     private final DocumentPage documents;
     private final ArrayList<String> elements;
-    private final PrintStream out;
-    private final String DELIMITER;
+    private final Marklogic_Output out;
     private final XMLDocumentManager docMgr;
     private final String ROOT_NODE;
+    private final Marklogic_StreamingExtractor extractor;
+    private final Marklogic_Transform transform;
+    private final ExecutorService executor;
+    private final Semaphore pagesInFlight;
 
-    public Marklogic_ProcessPage(DocumentPage documents, ArrayList<String> elements, PrintStream out, String DELIMITER, XMLDocumentManager docMgr, String ROOT_NODE) {
+    public Marklogic_ProcessPage(DocumentPage documents, ArrayList<String> elements, Marklogic_Output out, XMLDocumentManager docMgr, String ROOT_NODE,
+            Marklogic_StreamingExtractor extractor, Marklogic_Transform transform, ExecutorService executor, Semaphore pagesInFlight) {
         this.documents = documents;
         this.elements = elements;
         this.out = out;
-        this.DELIMITER = DELIMITER;
         this.docMgr = docMgr;
         this.ROOT_NODE = ROOT_NODE;
+        this.extractor = extractor;
+        this.transform = transform;
+        this.executor = executor;
+        this.pagesInFlight = pagesInFlight;
     }
 
-    public void run() {
-        processPage();
-    }
-
-    private void processPage() {
+    /*
+     * Queues the documents of the page and returns straight away - the page permit is
+     * given back once they have all been processed
+     */
+    public void submitDocs() {
         // PROCESS PAGE OF DOCUMENTS
-        Marklogic_ProcessDoc processDoc;
-
-        int numThreads = Runtime.getRuntime().availableProcessors();
-        //int numThreads = 1;
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        ArrayList<DocumentRecord> records = new ArrayList<DocumentRecord>();
         for (DocumentRecord document : documents) {
-            // CALL THREAD TO PROCESS DOC
-            processDoc = new Marklogic_ProcessDoc(document, elements, out, DELIMITER, docMgr, ROOT_NODE);
-            Runnable worker = processDoc;
-            executor.execute(worker);
+            records.add(document);
+        }
+        if (records.isEmpty()) {
+            pagesInFlight.release();
+            return;
         }
 
-        executor.shutdown();
-        // wait until all threads are finish
-        while (!executor.isTerminated()) {
+        AtomicInteger remaining = new AtomicInteger(records.size());
+        for (DocumentRecord document : records) {
+            // CALL THREAD TO PROCESS DOC
+            executor.execute(new PageDoc(new Marklogic_ProcessDoc(document, elements, out, docMgr, ROOT_NODE, extractor, transform), remaining));
         }
     }
 
+    /*
+     * Runs one document of the page, giving back the page permit after the last one
+     */
+    private class PageDoc implements Runnable {
+
+        private final Marklogic_ProcessDoc processDoc;
+        private final AtomicInteger remaining;
+
+        PageDoc(Marklogic_ProcessDoc processDoc, AtomicInteger remaining) {
+            this.processDoc = processDoc;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processDoc.run();
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    pagesInFlight.release();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.QueryBatch;
+import com.marklogic.client.datamovement.QueryBatchException;
+import com.marklogic.client.datamovement.QueryBatchListener;
+import com.marklogic.client.datamovement.QueryBatcher;
+import com.marklogic.client.datamovement.QueryFailureListener;
+import com.marklogic.client.eval.EvalResult;
+import com.marklogic.client.eval.EvalResultIterator;
+import com.marklogic.client.query.RawCombinedQueryDefinition;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Extracts the element values on the server, so only the values of the columns come
+ * back instead of whole documents.
+ *
+ * The URIs matching the query come from a QueryBatcher, as in Marklogic_BatchExport.
+ * For every batch the PROJECTION module below is run on the host that holds the batch.
+ * It works out the raw value of each column the same way Marklogic_ProcessDoc does on
+ * the DOM and returns one JSON array per document, led by its URI. The values are then
+ * handed to the output as usual. The module runs at the snapshot timestamp of the job.
+ *
+ * Columns with an element range index are taken from the lexicon instead (one
+ * co-occurrence scan of URI and value per column for the whole batch), and documents
+ * are only read at all when some column has no index. Lexicon values are the distinct
+ * values of the document in index order rather than every occurrence in document
+ * order, and are formatted by the index type.
+ *
+ * Needs the xdmp:eval privileges for the user, and does not support
+ * MARKLOGIC_ROOT_NODE.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_ProjectionExport {
+
+    // raw value of every element column of each document in the batch, one JSON array per document
+    private static final String PROJECTION
+            = "xquery version \"1.0-ml\";\n"
+            + "declare variable $uris as xs:string external;\n"
+            + "declare variable $elements as xs:string external;\n"
+            + "declare variable $indexes as xs:string external;\n"
+            + "declare variable $timestamp as xs:string external;\n"
+            // FIRST CHILD NODE OF THE ELEMENT - AN ELEMENT HAS NO VALUE
+            + "declare function local:value($e as element()) as xs:string {\n"
+            + "  let $n := $e/node()[1]\n"
+            + "  return if ($n instance of element()) then \"null\" else fn:string($n)\n"
+            + "};\n"
+            // SAME NAME MERGED TOGETHER
+            + "declare function local:merge($name as xs:string, $values as xs:string*) as xs:string {\n"
+            + "  if (fn:count($values) le 1) then fn:string-join($values, \"\")\n"
+            + "  else fn:string-join(for $v at $k in $values return fn:concat($name, $k, \": \", $v, \" \"), \"\")\n"
+            + "};\n"
+            // MATCHED BY QUALIFIED NAME IN DOCUMENT ORDER, NO CHILDREN EMPTIES THE COLUMN
+            + "declare function local:column($doc as node(), $name as xs:string) as xs:string {\n"
+            + "  let $matches := $doc//*[fn:name() eq $name]\n"
+            + "  return\n"
+            + "    if (fn:empty($matches) or (some $m in $matches satisfies fn:empty($m/node()))) then \"\"\n"
+            + "    else local:merge($name, for $m in $matches return local:value($m))\n"
+            + "};\n"
+            + "declare function local:qname($key as xs:string) as xs:QName {\n"
+            + "  fn:QName(fn:substring-before(fn:substring-after($key, \"{\"), \"}\"), fn:substring-after($key, \"}\"))\n"
+            + "};\n"
+            + "let $names := json:array-values(xdmp:from-json-string($elements))\n"
+            + "let $keys := json:array-values(xdmp:from-json-string($indexes))\n"
+            + "return xdmp:invoke-function(function() {\n"
+            + "  let $batch := json:array-values(xdmp:from-json-string($uris))\n"
+            + "  let $query := cts:document-query($batch)\n"
+            // ONE LEXICON SCAN PER INDEXED COLUMN FOR THE WHOLE BATCH - URI -> VALUES
+            + "  let $lexicons :=\n"
+            + "    for $key in $keys\n"
+            + "    return if ($key eq \"\") then map:map()\n"
+            + "    else cts:value-co-occurrences(cts:uri-reference(), cts:element-reference(local:qname($key)), \"map\", $query)\n"
+            // DOCUMENTS ARE ONLY READ FOR COLUMNS WITHOUT AN INDEX
+            + "  let $read-docs := $keys = \"\"\n"
+            + "  for $uri in $batch\n"
+            + "  let $doc := if ($read-docs) then fn:doc($uri) else ()\n"
+            + "  where fn:not($read-docs) or fn:exists($doc)\n"
+            + "  return xdmp:to-json-string(json:to-array(($uri,\n"
+            + "    for $name at $c in $names\n"
+            + "    return if ($keys[$c] eq \"\") then local:column($doc, $name)\n"
+            + "    else local:merge($name, for $v in map:get($lexicons[$c], $uri) return fn:string($v)))))\n"
+            + "}, <options xmlns=\"xdmp:eval\"><timestamp>{$timestamp}</timestamp></options>)\n";
+
+    // every element range index of the database as {namespace}localname
+    private static final String RANGE_INDEXES
+            = "xquery version \"1.0-ml\";\n"
+            + "import module namespace admin = \"http://marklogic.com/xdmp/admin\" at \"/MarkLogic/admin.xqy\";\n"
+            + "for $index in admin:database-get-range-element-indexes(admin:get-configuration(), xdmp:database())\n"
+            + "for $local in fn:tokenize(fn:string($index/*:localname), \" \")\n"
+            + "return fn:concat(\"{\", fn:string($index/*:namespace-uri), \"}\", $local)\n";
+
+    // true when the database keeps a URI lexicon - the co-occurrence scans can not run without one
+    private static final String URI_LEXICON
+            = "xquery version \"1.0-ml\";\n"
+            + "try { fn:count(cts:uris((), \"limit=1\")) ge 0 } catch ($e) { fn:false() }\n";
+
+    private final DatabaseClient mlClient;
+    private final RawCombinedQueryDefinition query;
+    private final int batchSize;
+    private final int threads;
+    private final String elementsJson;
+    private final String indexesJson;
+    private final Marklogic_Output out;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong docsProcessed = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    public Marklogic_ProjectionExport(DatabaseClient mlClient, RawCombinedQueryDefinition query, int batchSize, int threads, ArrayList<String> elements,
+            Marklogic_Output out, String[] indexes) throws IOException {
+        this.mlClient = mlClient;
+        this.query = query;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.out = out;
+
+        // THE ELEMENT NAMES ONLY - THE HEADER NAMES STAY ON THIS SIDE
+        String[] names = new String[elements.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = Marklogic_StreamingExtractor.getElementName(elements.get(i));
+        }
+        this.elementsJson = mapper.writeValueAsString(names);
+
+        // "" -> READ FROM THE DOCUMENT
+        String[] keys = new String[names.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (indexes == null || indexes[i] == null) ? "" : indexes[i];
+        }
+        this.indexesJson = mapper.writeValueAsString(keys);
+    }
+
+    /*
+     * Works out which columns can be read from a range index - returns the index as
+     * {namespace}localname for each column, or null when the column has to be read from
+     * the documents. INDEXED_ELEMENTS is either AUTO (look the indexes up, needs the
+     * admin read privileges) or a comma separated list of element names as they appear
+     * in the elements file, each followed by =namespace when the element has one. With
+     * AUTO the prefixes of the element names are resolved with NAMESPACES, a comma
+     * separated list of prefix=namespace - a name without a prefix only matches an index
+     * in no namespace. Nothing is read from the indexes when the URI lexicon is off.
+     */
+    public static String[] resolveIndexes(DatabaseClient mlClient, ArrayList<String> elements, String INDEXED_ELEMENTS, String NAMESPACES) {
+        String[] indexes = new String[elements.size()];
+
+        if (!hasUriLexicon(mlClient)) {
+            log(Level.WARNING, "No URI lexicon to scan the range indexes with - reading every column from the documents", true);
+            return indexes;
+        }
+
+        if (INDEXED_ELEMENTS.equalsIgnoreCase("AUTO")) {
+            Map<String, String> namespaces = new HashMap<String, String>();
+            for (String entry : NAMESPACES.split(",")) {
+                int equals = entry.indexOf('=');
+                if (equals > 0) {
+                    namespaces.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+                }
+            }
+
+            // EVERY INDEX AS {namespace}localname
+            Set<String> rangeIndexes = new HashSet<String>();
+            try {
+                EvalResultIterator results = mlClient.newServerEval().xquery(RANGE_INDEXES).eval();
+                try {
+                    for (EvalResult result : results) {
+                        rangeIndexes.add(result.getString());
+                    }
+                } finally {
+                    results.close();
+                }
+            } catch (RuntimeException ex) {
+                log(Level.WARNING, "Unable to look up range indexes (" + ex.getMessage() + ") - reading every column from the documents", true);
+            }
+
+            // MATCH ON THE NAMESPACE THE PREFIX STANDS FOR AS WELL AS THE LOCAL NAME
+            List<String> unknownPrefixes = new ArrayList<String>();
+            for (int i = 0; i < indexes.length; i++) {
+                String name = Marklogic_StreamingExtractor.getElementName(elements.get(i));
+                int colon = name.indexOf(':');
+                String namespace = (colon < 0) ? "" : namespaces.get(name.substring(0, colon));
+                if (namespace == null) {
+                    if (!unknownPrefixes.contains(name.substring(0, colon))) {
+                        unknownPrefixes.add(name.substring(0, colon));
+                    }
+                    continue;
+                }
+                String key = "{" + namespace + "}" + name.substring(colon + 1);
+                indexes[i] = rangeIndexes.contains(key) ? key : null;
+            }
+            if (!unknownPrefixes.isEmpty()) {
+                log(Level.WARNING, "Prefixes not in MARKLOGIC_NAMESPACES: " + unknownPrefixes + " - their columns are read from the documents", true);
+            }
+        } else {
+            Map<String, String> configured = new HashMap<String, String>();
+            for (String entry : INDEXED_ELEMENTS.split(",")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int equals = entry.indexOf('=');
+                String name = (equals < 0) ? entry : entry.substring(0, equals).trim();
+                String namespace = (equals < 0) ? "" : entry.substring(equals + 1).trim();
+                configured.put(name, "{" + namespace + "}" + name.substring(name.indexOf(':') + 1));
+            }
+            List<String> unused = new ArrayList<String>(configured.keySet());
+            for (int i = 0; i < indexes.length; i++) {
+                String name = Marklogic_StreamingExtractor.getElementName(elements.get(i));
+                indexes[i] = configured.get(name);
+                unused.remove(name);
+            }
+            if (!unused.isEmpty()) {
+                log(Level.WARNING, "Indexed elements not in the elements file: " + unused, true);
+            }
+        }
+
+        List<String> indexed = new ArrayList<String>();
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] != null) {
+                indexed.add(elements.get(i) + " -> " + indexes[i]);
+            }
+        }
+        log(Level.INFO, "Columns read from range indexes: " + (indexed.isEmpty() ? "none" : indexed.toString())
+                + ((indexed.size() == indexes.length) ? " - no documents will be read" : ""), true);
+        return indexes;
+    }
+
+    private static boolean hasUriLexicon(DatabaseClient mlClient) {
+        try {
+            EvalResultIterator results = mlClient.newServerEval().xquery(URI_LEXICON).eval();
+            try {
+                return results.hasNext() && Boolean.parseBoolean(results.next().getString());
+            } finally {
+                results.close();
+            }
+        } catch (RuntimeException ex) {
+            log(Level.WARNING, "Unable to check the URI lexicon (" + ex.getMessage() + ")", true);
+            return false;
+        }
+    }
+
+    /*
+     * Runs the export and waits for it to finish
+     */
+    public void export() {
+        DataMovementManager dmm = mlClient.newDataMovementManager();
+
+        QueryBatcher batcher = dmm.newQueryBatcher(query)
+                .withJobName("GNC_DataExtraction projection")
+                .withBatchSize(batchSize)
+                .withThreadCount(threads)
+                .withConsistentSnapshot()
+                .onUrisReady(new Projection())
+                .onQueryFailure(new QueryFailure());
+
+        log(Level.INFO, "Starting server side projection with batches of " + batchSize + " on " + threads + " threads", true);
+        dmm.startJob(batcher);
+        batcher.awaitCompletion();
+        dmm.stopJob(batcher);
+        dmm.release();
+
+        log(Level.INFO, "Server side projection complete: " + docsProcessed.get() + " documents processed", true);
+        if (failedBatches.get() > 0) {
+            log(Level.SEVERE, failedBatches.get() + " batches failed - see log for details", true);
+        }
+    }
+
+    /*
+     * Projects one batch of URIs on the host the batch came from
+     */
+    private class Projection implements QueryBatchListener {
+
+        @Override
+        public void processEvent(QueryBatch batch) {
+            try {
+                EvalResultIterator results = batch.getClient().newServerEval()
+                        .xquery(PROJECTION)
+                        .addVariable("uris", mapper.writeValueAsString(batch.getItems()))
+                        .addVariable("elements", elementsJson)
+                        .addVariable("indexes", indexesJson)
+                        .addVariable("timestamp", String.valueOf(batch.getServerTimestamp()))
+                        .eval();
+                try {
+                    for (EvalResult result : results) {
+                        // URI FIRST, THEN THE COLUMNS
+                        String[] values = mapper.readValue(result.getString(), String[].class);
+                        out.write(values[0], Collections.singletonList(Arrays.copyOfRange(values, 1, values.length)));
+                        docsProcessed.incrementAndGet();
+                    }
+                } finally {
+                    results.close();
+                }
+                log(Level.INFO, "Batch " + batch.getJobBatchNumber() + " done, " + batch.getJobResultsSoFar() + " URIs so far", batch.getJobBatchNumber() % 10 == 0);
+            } catch (IOException | RuntimeException ex) {
+                failedBatches.incrementAndGet();
+                log(Level.SEVERE, "Unable to project batch " + batch.getJobBatchNumber() + ": " + ex.getMessage(), true);
+            }
+        }
+    }
+
+    private class QueryFailure implements QueryFailureListener {
+
+        @Override
+        public void processFailure(QueryBatchException failure) {
+            failedBatches.incrementAndGet();
+            log(Level.SEVERE, "Unable to read URIs from forest " + failure.getForest() + ": " + failure.getMessage(), true);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.gnc.marklogic.dataextraction.ExtractHelper;
+import org.gnc.marklogic.dataextraction.OutputSink;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Writes the rows of the MarkLogic workers as delimited text without making them wait
+ * on each other for every row.
+ *
+ * The values are cleaned and joined into a line in the worker thread, and rows that
+ * come out empty are left out. Each worker thread has its own buffer and the rows of a document are always written
+ * together. How the buffers reach the disk depends on the mode -
+ *
+ * BUFFERED - the buffer is written to the output file in blocks of about 1MB, so the
+ * workers only meet once per block. Rows come out in whatever order they were done.
+ *
+ * SHARDS - every worker thread writes its own file (output.1.txt, output.2.txt and so
+ * on), each with the header. The workers never meet.
+ *
+ * SORTED - the rows of each worker are sorted by document URI in memory and spilled to
+ * run files next to the output, which are merged into the output file in URI order at
+ * the end, no more than 64 at a time. Repeated runs over the same data give the same file.
+ *
+ * Output files are UTF-8 and go through an OutputSink, which forces them to disk as
+ * the sync policy says.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_RowWriter extends Marklogic_Output {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final long RUN_SIZE = 32L * 1024 * 1024;
+
+    // runs read at once by a merge, and the read buffer of each
+    private static final int MERGE_WIDTH = 64;
+    private static final int RUN_READ_SIZE = 64 * 1024;
+    private static final String NEW_LINE = System.lineSeparator();
+
+    private final String path;
+    private final String header;
+    private final String mode;
+    private final String DELIMITER;
+    private final long syncBytes;
+
+    private final OutputSink out;
+    private final ConcurrentLinkedQueue<ThreadBuffer> buffers = new ConcurrentLinkedQueue<ThreadBuffer>();
+    private final ConcurrentLinkedQueue<File> runs = new ConcurrentLinkedQueue<File>();
+    private final AtomicInteger shardCount = new AtomicInteger();
+    private final AtomicInteger runCount = new AtomicInteger();
+
+    private final ThreadLocal<ThreadBuffer> buffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer threadBuffer = new ThreadBuffer();
+            buffers.add(threadBuffer);
+            return threadBuffer;
+        }
+    };
+
+    public Marklogic_RowWriter(String path, String header, String mode, String DELIMITER, long syncBytes) throws IOException {
+        this.path = path;
+        this.header = header;
+        this.mode = mode.toUpperCase();
+        this.DELIMITER = DELIMITER;
+        this.syncBytes = syncBytes;
+        if (!this.mode.equals("BUFFERED") && !this.mode.equals("SHARDS") && !this.mode.equals("SORTED")) {
+            throw new IOException("Unknown output mode " + mode + " (expected BUFFERED, SHARDS or SORTED)");
+        }
+
+        // SHARDS ONLY HAS THE WORKER FILES, SORTED WRITES THE OUTPUT AT THE END
+        if (this.mode.equals("BUFFERED")) {
+            out = new OutputSink(new File(path), syncBytes);
+            out.write(header + NEW_LINE);
+        } else {
+            out = null;
+        }
+    }
+
+    /*
+     * Writes the rows of one document - called by the worker threads
+     */
+    @Override
+    public void write(String uri, List<String[]> rows) throws IOException {
+        List<String> lines = new ArrayList<String>(rows.size());
+        for (String[] values : rows) {
+            String line = toLine(values, DELIMITER);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        ThreadBuffer threadBuffer = buffer.get();
+        synchronized (threadBuffer) {
+            threadBuffer.add(uri, lines);
+        }
+    }
+
+    /*
+     * Cleans up the raw element values and joins them into one line - null when they are all empty
+     */
+    static String toLine(String[] values, String DELIMITER) {
+
+        int columnCount = 1;
+        String output = "";
+
+        for (String value : values) {
+            // add cleaned up element value to output
+            output = output.concat(cleanValue(value, DELIMITER));
+
+            // add delimiter to outputrow unless last column in row
+            if (columnCount != values.length) {
+                output = output.concat(DELIMITER);
+            }
+            columnCount++;
+        }
+
+        return output.trim().equals("") ? null : output;
+    }
+
+    private static String cleanValue(String elementValue, String DELIMITER) {
+
+        // REMOVE CARRIAGE RETURNS/LINE FEEDS
+        elementValue = ExtractHelper.replaceCR_LF(elementValue);
+
+        // REMOVE DELIMITER IF POSSIBLE (DEFAULT PIPE)
+        try {
+            elementValue = elementValue.replaceAll("\\" + DELIMITER, "");
+        } catch (Exception ex) {
+        }
+
+        return elementValue;
+    }
+
+    /*
+     * Writes out what is left in the buffers - all workers have to be finished
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ThreadBuffer threadBuffer : buffers) {
+            try {
+                synchronized (threadBuffer) {
+                    threadBuffer.close();
+                }
+            } catch (IOException ex) {
+                failure = (failure == null) ? ex : failure;
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (mode.equals("SORTED")) {
+            mergeRuns();
+        } else if (mode.equals("SHARDS")) {
+            log(Level.INFO, "Output written to " + shardCount.get() + " shard files", true);
+        }
+    }
+
+    /*
+     * Merges the sorted run files of all the workers into the output file - at most MERGE_WIDTH
+     * runs are open at once, so with more runs than that they are merged into longer runs first
+     */
+    private void mergeRuns() throws IOException {
+        int runTotal = runs.size();
+        List<File> pending = new ArrayList<File>(runs);
+        int passes = 1;
+        try {
+            while (pending.size() > MERGE_WIDTH) {
+                // CONSECUTIVE GROUPS KEEP DOCUMENTS WITH THE SAME URI IN THE ORDER OF THEIR RUNS
+                List<File> merged = new ArrayList<File>();
+                for (int i = 0; i < pending.size(); i += MERGE_WIDTH) {
+                    List<File> group = pending.subList(i, Math.min(i + MERGE_WIDTH, pending.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    File run = new File(numberedPath("run", runCount.incrementAndGet()) + ".tmp");
+                    runs.add(run);
+                    DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BLOCK_SIZE));
+                    try {
+                        merge(group, null, runOut);
+                    } finally {
+                        runOut.close();
+                    }
+                    for (File done : group) {
+                        done.delete();
+                    }
+                    merged.add(run);
+                }
+                pending = merged;
+                passes++;
+            }
+
+            OutputSink output = new OutputSink(new File(path), syncBytes);
+            try {
+                output.write(header + NEW_LINE);
+                merge(pending, output, null);
+            } finally {
+                output.close();
+            }
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+        log(Level.INFO, "Output merged in URI order from " + runTotal + " sorted runs in " + passes + (passes == 1 ? " pass" : " passes"), true);
+    }
+
+    /*
+     * Merges a group of runs in URI order, into the output file or into a new run when output is null
+     */
+    private void merge(List<File> group, OutputSink output, DataOutputStream runOut) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(Math.max(group.size(), 1), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader a, RunReader b) {
+                int compare = a.uri.compareTo(b.uri);
+                return (compare != 0) ? compare : Integer.compare(a.order, b.order);
+            }
+        });
+
+        try {
+            int order = 0;
+            for (File run : group) {
+                RunReader reader = new RunReader(run, order++);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+                if (output != null) {
+                    output.writeBytes(reader.rows, 0, reader.rows.length);
+                } else {
+                    writeBytes(runOut, reader.uri.getBytes(StandardCharsets.UTF_8));
+                    writeBytes(runOut, reader.rows);
+                }
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /*
+     * Output file name with a number before the extension
+     */
+    private String numberedPath(String suffix, int number) {
+        File file = new File(path);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String numbered = (dot < 0) ? name + "." + suffix + number : name.substring(0, dot) + "." + suffix + number + name.substring(dot);
+        return new File(file.getAbsoluteFile().getParentFile(), numbered).getPath();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /*
+     * The rows of one worker thread
+     */
+    private class ThreadBuffer {
+
+        private final StringBuilder rows = new StringBuilder();
+        private OutputSink shard = null;
+        private final List<String[]> documents = new ArrayList<String[]>();
+        private long documentChars = 0;
+
+        private void add(String uri, List<String> documentRows) throws IOException {
+            if (mode.equals("SORTED")) {
+                StringBuilder text = new StringBuilder();
+                for (String row : documentRows) {
+                    text.append(row).append(NEW_LINE);
+                }
+                documents.add(new String[]{uri, text.toString()});
+                documentChars += uri.length() + text.length() + 32;
+                if (documentChars >= RUN_SIZE) {
+                    spillRun();
+                }
+                return;
+            }
+
+            for (String row : documentRows) {
+                rows.append(row).append(NEW_LINE);
+            }
+            if (rows.length() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows.length() == 0) {
+                return;
+            }
+            if (mode.equals("SHARDS")) {
+                // OWN FILE - ENCODED STRAIGHT INTO ITS BUFFER
+                if (shard == null) {
+                    shard = new OutputSink(new File(numberedPath("", shardCount.incrementAndGet())), syncBytes);
+                    shard.write(header + NEW_LINE);
+                }
+                shard.write(rows.toString());
+                rows.setLength(0);
+                return;
+            }
+
+            // ENCODE OUTSIDE THE LOCK
+            byte[] block = rows.toString().getBytes(StandardCharsets.UTF_8);
+            rows.setLength(0);
+            synchronized (out) {
+                out.writeBytes(block, 0, block.length);
+            }
+        }
+
+        /*
+         * Sorts the documents held by this worker by URI and writes them to a new run file
+         */
+        private void spillRun() throws IOException {
+            if (documents.isEmpty()) {
+                return;
+            }
+            Collections.sort(documents, new Comparator<String[]>() {
+                @Override
+                public int compare(String[] a, String[] b) {
+                    return a[0].compareTo(b[0]);
+                }
+            });
+
+            File run = new File(numberedPath("run", runCount.incrementAndGet()) + ".tmp");
+            runs.add(run);
+            DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BLOCK_SIZE));
+            try {
+                for (String[] document : documents) {
+                    writeBytes(runOut, document[0].getBytes(StandardCharsets.UTF_8));
+                    writeBytes(runOut, document[1].getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                runOut.close();
+            }
+            documents.clear();
+            documentChars = 0;
+        }
+
+        private void close() throws IOException {
+            if (mode.equals("SORTED")) {
+                spillRun();
+                return;
+            }
+            try {
+                flushBlock();
+            } finally {
+                if (shard != null) {
+                    shard.close();
+                    shard = null;
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads the documents of one run file back in order
+     */
+    private static class RunReader {
+
+        private final DataInputStream in;
+        private final int order;
+        private String uri;
+        private byte[] rows;
+
+        RunReader(File run, int order) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_READ_SIZE));
+            this.order = order;
+        }
+
+        private boolean next() throws IOException {
+            byte[] uriBytes;
+            try {
+                uriBytes = readBytes(in);
+            } catch (EOFException ex) {
+                return false;
+            }
+            uri = new String(uriBytes, StandardCharsets.UTF_8);
+            rows = readBytes(in);
+            return true;
+        }
+
+        private void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls the values of the configured elements out of a document in a single pass
+ * with a StAX parser, without building a DOM.
+ *
+ * The values are the same as Marklogic_ProcessDoc.getElementValue gives on the DOM -
+ * the first child node of each matching element, in document order, with repeated
+ * elements merged as "name1: value name2: value ". An element whose first child is
+ * another element gives "null" and an element with no children empties the column,
+ * as they do on the DOM. The element name to column lookup is worked out once and
+ * shared by all threads.
+ *
+ * With a root node the document is exploded into one row per root node occurrence
+ * (root nodes inside a root node stay part of it). A column takes its value from the
+ * root node occurrence when it is found there, otherwise from the closest ancestor of
+ * the occurrence that has it anywhere below it outside of the root node occurrences -
+ * so parent and parent sibling values are carried into every row of their root nodes
+ * without being copied for each one. Attributes count as child elements ahead of the
+ * element's children, as they do after the attribute to element transform, and
+ * DOC_URI gives the document URI.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_StreamingExtractor {
+
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private static final ThreadLocal<XMLInputFactory> FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+            // THE JDK PARSER REPORTS CDATA AS PLAIN TEXT UNLESS ASKED - IT IS A SEPARATE NODE IN THE DOM
+            try {
+                factory.setProperty(REPORT_CDATA, true);
+            } catch (IllegalArgumentException ex) {
+            }
+            return factory;
+        }
+    };
+
+    // element name -> the columns it is output in
+    private final Map<String, int[]> columnsByName = new HashMap<String, int[]>();
+    private final String[] names;
+    private final String ROOT_NODE;
+    private final int[] uriColumns;
+
+    public Marklogic_StreamingExtractor(List<String> elements) {
+        this(elements, null);
+    }
+
+    /*
+     * ROOT_NODE null or empty -> one row per document
+     */
+    public Marklogic_StreamingExtractor(List<String> elements, String ROOT_NODE) {
+        this.ROOT_NODE = (ROOT_NODE == null || ROOT_NODE.equals("")) ? null : ROOT_NODE;
+        names = new String[elements.size()];
+        Map<String, List<Integer>> columns = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < elements.size(); i++) {
+            names[i] = getElementName(elements.get(i));
+            List<Integer> list = columns.get(names[i]);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                columns.put(names[i], list);
+            }
+            list.add(i);
+        }
+        for (Map.Entry<String, List<Integer>> entry : columns.entrySet()) {
+            int[] indexes = new int[entry.getValue().size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = entry.getValue().get(i);
+            }
+            columnsByName.put(entry.getKey(), indexes);
+        }
+        int[] uri = columnsByName.get("DOC_URI");
+        uriColumns = (uri == null) ? new int[0] : uri;
+    }
+
+    /*
+     * The element to look for - the part before "==" when the column is given another name in the header
+     */
+    public static String getElementName(String element) {
+        int mapping = element.indexOf("==");
+        return mapping < 0 ? element : element.substring(0, mapping);
+    }
+
+    /**
+     * @return true when documents are exploded on a root node
+     */
+    public boolean isExploding() {
+        return ROOT_NODE != null;
+    }
+
+    /*
+     * Reads the document once and returns the raw value of every column
+     */
+    public String[] extract(InputStream in) throws XMLStreamException {
+        Frame document = parse(in, null, null);
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Column column = document.columns == null ? null : document.columns[i];
+            values[i] = (column == null) ? "" : column.getValue(names[i]);
+        }
+        return values;
+    }
+
+    /*
+     * Reads the document once and returns the raw values of one row per root node occurrence
+     */
+    public List<String[]> extractRows(InputStream in, String uri) throws XMLStreamException {
+        List<Row> rows = new ArrayList<Row>();
+        parse(in, uri, rows);
+
+        List<String[]> values = new ArrayList<String[]>(rows.size());
+        for (Row row : rows) {
+            // NOT FOUND IN ANY ANCESTOR
+            for (int i = 0; i < names.length; i++) {
+                if (row.values[i] == null) {
+                    row.values[i] = "";
+                }
+            }
+            values.add(row.values);
+        }
+        return values;
+    }
+
+    private Frame parse(InputStream in, String uri, List<Row> rows) throws XMLStreamException {
+        boolean exploding = (rows != null);
+
+        // OUTERMOST SCOPE - EVERYTHING ENDS UP HERE WHEN NOT EXPLODING
+        Frame document = new Frame(names.length, false);
+        if (exploding) {
+            for (int column : uriColumns) {
+                document.getColumn(column).values.add(uri);
+            }
+        }
+
+        // ONE FRAME PER OPEN ELEMENT, ONLY NEEDED FOR THE SCOPES WHEN EXPLODING
+        ArrayList<Frame> stack = new ArrayList<Frame>();
+        stack.add(document);
+        boolean inRoot = false;
+
+        XMLStreamReader reader = FACTORY.get().createXMLStreamReader(in);
+        try {
+            // THE MATCHING ELEMENT WHOSE FIRST CHILD NODE IS STILL TO COME
+            int[] pending = null;
+            StringBuilder text = null;
+            int textType = -1;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                Frame target = stack.get(stack.size() - 1);
+
+                // A RUN OF TEXT IS ONE NODE - IT ENDS AT THE FIRST EVENT OF ANOTHER KIND
+                if (text != null) {
+                    if (isText(event) && sameTextNode(textType, event)) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        continue;
+                    }
+                    target.addValue(pending, text.toString());
+                    pending = null;
+                    text = null;
+                }
+
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        if (pending != null) {
+                            // FIRST CHILD IS AN ELEMENT - NO NODE VALUE
+                            target.addValue(pending, null);
+                        }
+                        String name = getQName(reader.getPrefix(), reader.getLocalName());
+                        pending = columnsByName.get(name);
+
+                        if (exploding) {
+                            boolean root = !inRoot && name.equals(ROOT_NODE);
+                            inRoot |= root;
+                            target = new Frame(names.length, root);
+                            stack.add(target);
+
+                            // ATTRIBUTES ARE THE FIRST CHILD ELEMENTS
+                            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                                if (pending != null) {
+                                    target.addValue(pending, null);
+                                    pending = null;
+                                }
+                                int[] columns = columnsByName.get(getQName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)));
+                                if (columns != null) {
+                                    String value = reader.getAttributeValue(i);
+                                    if (value.isEmpty()) {
+                                        target.empty(columns);
+                                    } else {
+                                        target.addValue(columns, value);
+                                    }
+                                }
+                            }
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (pending != null) {
+                            // NO CHILD NODES AT ALL
+                            target.empty(pending);
+                            pending = null;
+                        }
+                        if (exploding) {
+                            stack.remove(stack.size() - 1);
+                            endFrame(target, stack.get(stack.size() - 1), rows);
+                            if (target.root) {
+                                inRoot = false;
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                    case XMLStreamConstants.CDATA:
+                        if (pending != null) {
+                            text = new StringBuilder();
+                            textType = event;
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (pending != null) {
+                            target.addValue(pending, reader.getText());
+                            pending = null;
+                        }
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        if (pending != null) {
+                            target.addValue(pending, reader.getPIData());
+                            pending = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (exploding) {
+            document.resolve(names);
+        }
+        return document;
+    }
+
+    /*
+     * A root node occurrence becomes a row - any other element hands its values and the
+     * rows it could not complete on to its parent
+     */
+    private void endFrame(Frame frame, Frame parent, List<Row> rows) {
+        if (frame.root) {
+            Row row = new Row(names.length);
+            rows.add(row);
+            frame.pending.add(row);
+            frame.resolve(names);
+            parent.pending.addAll(frame.pending);
+            return;
+        }
+        frame.resolve(names);
+        parent.pending.addAll(frame.pending);
+        parent.merge(frame);
+    }
+
+    private static String getQName(String prefix, String localName) {
+        return (prefix == null || prefix.isEmpty()) ? localName : prefix + ":" + localName;
+    }
+
+    private static boolean isText(int event) {
+        return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE || event == XMLStreamConstants.CDATA;
+    }
+
+    private static boolean sameTextNode(int textType, int event) {
+        // TEXT AND WHITESPACE ARE THE SAME NODE, EACH CDATA SECTION IS A NODE OF ITS OWN
+        return textType != XMLStreamConstants.CDATA && event != XMLStreamConstants.CDATA;
+    }
+
+    /*
+     * The values found below one open element (or the whole document), outside of root nodes
+     */
+    private static class Frame {
+
+        private final int columnCount;
+        private final boolean root;
+        private Column[] columns = null;
+
+        // rows still missing columns this frame might have
+        private final List<Row> pending = new ArrayList<Row>(0);
+
+        Frame(int columnCount, boolean root) {
+            this.columnCount = columnCount;
+            this.root = root;
+        }
+
+        private Column getColumn(int column) {
+            // MOST ELEMENTS HAVE NO VALUES AT ALL
+            if (columns == null) {
+                columns = new Column[columnCount];
+            }
+            if (columns[column] == null) {
+                columns[column] = new Column();
+            }
+            return columns[column];
+        }
+
+        private void addValue(int[] pending, String value) {
+            for (int column : pending) {
+                getColumn(column).values.add(value);
+            }
+        }
+
+        private void empty(int[] pending) {
+            for (int column : pending) {
+                getColumn(column).empty = true;
+            }
+        }
+
+        private void merge(Frame child) {
+            if (child.columns == null) {
+                return;
+            }
+            for (int i = 0; i < columnCount; i++) {
+                if (child.columns[i] != null) {
+                    Column column = getColumn(i);
+                    column.values.addAll(child.columns[i].values);
+                    column.empty |= child.columns[i].empty;
+                }
+            }
+        }
+
+        /*
+         * Fills in the columns this frame has for the pending rows, keeping only the rows still missing some
+         */
+        private void resolve(String[] names) {
+            if (columns == null) {
+                return;
+            }
+            for (int r = pending.size() - 1; r >= 0; r--) {
+                Row row = pending.get(r);
+                for (int i = 0; i < columnCount; i++) {
+                    if (row.values[i] == null && columns[i] != null) {
+                        row.values[i] = columns[i].getValue(names[i]);
+                        row.missing--;
+                    }
+                }
+                if (row.missing == 0) {
+                    pending.remove(r);
+                }
+            }
+        }
+    }
+
+    private static class Row {
+
+        private final String[] values;
+        private int missing;
+
+        Row(int columnCount) {
+            this.values = new String[columnCount];
+            this.missing = columnCount;
+        }
+    }
+
+    /*
+     * The values found for one column
+     */
+    private static class Column {
+
+        private final List<String> values = new ArrayList<String>(1);
+        private boolean empty = false;
+
+        private String getValue(String name) {
+            // AN OCCURRENCE WITHOUT CHILD NODES EMPTIES THE WHOLE COLUMN
+            if (empty) {
+                return "";
+            }
+            if (values.size() == 1) {
+                return String.valueOf(values.get(0));
+            }
+
+            // MERGE ELEMENTS TOGETHER WITH SAME NAME
+            StringBuilder merged = new StringBuilder();
+            for (int k = 0; k < values.size(); k++) {
+                merged.append(name).append(k + 1).append(": ").append(values.get(k)).append(' ');
+            }
+            return merged.toString();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.marklogic;
+
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The transform applied to each temp doc built around a root node, shared by all
+ * worker threads.
+ *
+ * In XSLT mode TRANSFORM.xslt is compiled once into a Templates object and every
+ * thread keeps its own Transformer made from it. FLATTEN mode does not use the XSLT at
+ * all - it copies the nodes and turns each attribute into a child element with the same
+ * name and the attribute value as text, ahead of the element's own children. That is
+ * what the identity plus attribute to element stylesheet does, at the speed of a plain
+ * DOM copy. Each thread also keeps a DocumentBuilder for the temp docs.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Marklogic_Transform {
+
+    public static final String XSLT_FILE = "transforms\\marklogic\\TRANSFORM.xslt";
+
+    private final Templates templates;
+
+    private final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                return templates.newTransformer();
+            } catch (TransformerConfigurationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    private static final ThreadLocal<DocumentBuilder> BUILDER = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    /*
+     * XSLT mode - compiles the stylesheet once
+     */
+    public Marklogic_Transform(File xslt) throws TransformerConfigurationException {
+        this.templates = TransformerFactory.newInstance().newTemplates(new StreamSource(xslt));
+    }
+
+    /*
+     * FLATTEN mode - no stylesheet
+     */
+    public Marklogic_Transform() {
+        this.templates = null;
+    }
+
+    /**
+     * @return true when the native attribute flattening is used instead of the XSLT
+     */
+    public boolean isNative() {
+        return templates == null;
+    }
+
+    /*
+     * New empty doc from the builder of this thread
+     */
+    public Document newDocument() {
+        return BUILDER.get().newDocument();
+    }
+
+    /*
+     * Transforms the temp doc built under rootNode into a new doc
+     */
+    public Document transform(Node rootNode) throws TransformerException {
+        if (templates == null) {
+            Document domDoc = newDocument();
+            domDoc.appendChild(flatten(rootNode, domDoc));
+            return domDoc;
+        }
+
+        DOMResult domOutput = new DOMResult();
+        transformers.get().transform(new DOMSource(rootNode), domOutput);
+        return (Document) domOutput.getNode();
+    }
+
+    private Node flatten(Node node, Document target) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return target.importNode(node, true);
+        }
+
+        Element element = target.createElement(node.getNodeName());
+
+        // ATTRIBUTES -> ELEMENTS, BEFORE THE CHILDREN
+        NamedNodeMap attributes = node.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = attribute.getName();
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                continue;
+            }
+            Element attributeElement = target.createElement(name);
+            attributeElement.setTextContent(attribute.getValue());
+            element.appendChild(attributeElement);
+        }
+
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            element.appendChild(flatten(child, target));
+        }
+        return element;
+    }
+}
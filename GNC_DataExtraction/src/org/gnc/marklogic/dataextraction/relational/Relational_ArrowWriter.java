@@ -0,0 +1,445 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Blob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.DateDayVector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TimeMicroVector;
+import org.apache.arrow.vector.TimeStampVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.DateUnit;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.getEstimatedCompleteDate;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Writes the rows of a query to Arrow IPC files (fileName.N.arrow).
+ *
+ * The columns get the same native types as in the Parquet output (see
+ * Relational_NativeType) - whole numbers are Int(32)/Int(64), floating point columns
+ * Float/Double, dates Date(DAY), times Time(MICROSECOND), timestamps Timestamp(MICROSECOND)
+ * (with no time zone for wall clock times, UTC for timestamps with a time zone),
+ * NUMBER/DECIMAL columns too wide for a long or with a scale Decimal, bits Bool and
+ * everything else Utf8. Values are read from the result set straight into the column
+ * vectors and every batchSize rows (FETCH_SIZE) the vectors are written out as one
+ * record batch. Consumers can memory map the files and read the batches without any
+ * parsing. Like the DSV chunk files a new file is started whenever the chunk policy
+ * says the current one is full - only record batches already written count towards
+ * its size - and each file is renamed to its final name once it is complete and
+ * reported to the progress of the entry. After a failure the file being written is
+ * dropped instead.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ArrowWriter {
+
+    private final String OUTPUT_DIR;
+    private final String fileName;
+    private final Relational_ChunkPolicy policy;
+    private final int batchSize;
+    private final long rowCount;
+    private final long queryStartTime;
+    private final Relational_BlobStore blobStore;
+    private final Relational_EntryProgress progress;
+
+    private final Schema schema;
+    private final Relational_NativeType[] types;
+    private final int[] scales;
+    private final Calendar utc = Relational_NativeType.newUtcCalendar();
+    private final BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+    private final VectorSchemaRoot root;
+    private final FieldVector[] vectors;
+    private byte[] blobBuffer = null;
+
+    private FileChannel channel = null;
+    private ArrowFileWriter out = null;
+    private File chunkFile = null;
+    private long chunkOpenedAt = 0;
+    private long chunkCount = 0;
+    private long rowsInChunk = 0;
+    private int rowsInBatch = 0;
+    private long rowsWritten = 0;
+    private Object lastKey = null;
+
+    public Relational_ArrowWriter(String OUTPUT_DIR, String fileName, ResultSetMetaData rsmd, Relational_ColumnPlan plan, String DB_TYPE, Relational_BlobStore blobStore,
+            Relational_ChunkPolicy policy, int batchSize, long rowCount, long queryStartTime, Relational_EntryProgress progress) throws IOException, SQLException {
+        this.OUTPUT_DIR = OUTPUT_DIR;
+        this.fileName = fileName;
+        this.blobStore = blobStore;
+        this.policy = policy;
+        this.batchSize = Math.max(batchSize, 1);
+        this.rowCount = rowCount;
+        this.queryStartTime = queryStartTime;
+        this.progress = progress;
+        this.chunkCount = progress.getChunksDone();
+        this.rowsWritten = progress.getRowsDone();
+
+        int colCount = plan.getColumnCount();
+        types = new Relational_NativeType[colCount + 1];
+        scales = new int[colCount + 1];
+        List<Field> fields = new ArrayList<Field>();
+        Set<String> usedNames = new HashSet<String>();
+        for (int i = 1; i <= colCount; i++) {
+
+            // FIELD NAMES HAVE TO BE UNIQUE - A JOIN CAN RETURN THE SAME COLUMN NAME TWICE
+            String name = rsmd.getColumnLabel(i);
+            String uniqueName = name;
+            for (int n = 2; !usedNames.add(uniqueName.toUpperCase()); n++) {
+                uniqueName = name + "_" + n;
+            }
+
+            types[i] = Relational_NativeType.resolve(rsmd, i, DB_TYPE, plan, blobStore != null);
+            ArrowType type;
+            switch (types[i]) {
+                case INT32:
+                    type = new ArrowType.Int(32, true);
+                    break;
+                case INT64:
+                    type = new ArrowType.Int(64, true);
+                    break;
+                case FLOAT:
+                    type = new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+                    break;
+                case DOUBLE:
+                    type = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+                    break;
+                case DECIMAL:
+                    scales[i] = rsmd.getScale(i);
+                    type = new ArrowType.Decimal(rsmd.getPrecision(i), scales[i]);
+                    break;
+                case BOOLEAN:
+                    type = new ArrowType.Bool();
+                    break;
+                case DATE:
+                    type = new ArrowType.Date(DateUnit.DAY);
+                    break;
+                case TIME:
+                    type = new ArrowType.Time(TimeUnit.MICROSECOND, 64);
+                    break;
+                case TIMESTAMP:
+                    // NO TIME ZONE - THE WALL CLOCK TIME IN THE DATABASE
+                    type = new ArrowType.Timestamp(TimeUnit.MICROSECOND, null);
+                    break;
+                case TIMESTAMP_UTC:
+                    type = new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC");
+                    break;
+                case BYTES:
+                    type = new ArrowType.Binary();
+                    break;
+                default:
+                    // STRINGS AND BLOB STORE REFERENCES
+                    type = new ArrowType.Utf8();
+                    break;
+            }
+            fields.add(new Field(uniqueName, FieldType.nullable(type), null));
+        }
+        schema = new Schema(fields);
+
+        // ONE SET OF VECTORS, REUSED FOR EVERY RECORD BATCH
+        root = VectorSchemaRoot.create(schema, allocator);
+        vectors = root.getFieldVectors().toArray(new FieldVector[colCount]);
+        for (FieldVector vector : vectors) {
+            vector.allocateNew();
+        }
+
+        // IF OUTPUT DIR DOES NOT EXIST -> CREATE IT
+        File outputDir = new File(OUTPUT_DIR);
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+
+        // CREATE INITIAL FILE
+        openChunk();
+    }
+
+    private void openChunk() throws IOException {
+        chunkCount++;
+        rowsInChunk = 0;
+        chunkOpenedAt = System.currentTimeMillis();
+        chunkFile = new File(OUTPUT_DIR + fileName + "." + chunkCount + ".arrow");
+
+        // WRITTEN UNDER A TEMPORARY NAME UNTIL COMPLETE
+        channel = FileChannel.open(Relational_ChunkPolicy.partFile(chunkFile).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        out = new ArrowFileWriter(root, new DictionaryProvider.MapDictionaryProvider(), channel);
+        out.start();
+    }
+
+    /*
+     * Adds the row the result set is on to the current batch, writing the batch out once it is full
+     */
+    public void write(ResultSet rs) throws IOException, SQLException {
+        // READ THE KEY FIRST SO A KEY THAT REPEATS THE LAST ONE OF THE CHUNK IS SEEN BEFORE THE CHUNK IS REPORTED
+        Object key = progress.readKey(rs);
+
+        // CREATE NEW OUTPUT FILE EVERYTIME THE CHUNK IS FULL
+        if (policy.isFull(rowsInChunk, channel.position(), chunkOpenedAt)) {
+            closeChunk();
+            log(Level.INFO, "Arrow file " + fileName + "." + chunkCount + " complete.", false);
+
+            // LOG PERCENT COMPLETE AND EST TIME LEFT
+            if (rowCount != 0) {
+                System.out.println("Current estimated completion time for " + fileName + ": " + getEstimatedCompleteDate(queryStartTime, rowsWritten, rowCount));
+            } else {
+                System.out.println("Estimated completion time unavailable for " + fileName);
+            }
+            openChunk();
+        }
+
+        for (int i = 1; i < types.length; i++) {
+            readColumn(rs, i, vectors[i - 1], rowsInBatch);
+        }
+        lastKey = key;
+        rowsInBatch++;
+        rowsInChunk++;
+        rowsWritten++;
+
+        if (rowsInBatch == batchSize) {
+            writeBatch();
+        }
+    }
+
+    /*
+     * Reads one column into its vector - columns that are null are left unset
+     */
+    private void readColumn(ResultSet rs, int i, FieldVector vector, int row) throws SQLException, IOException {
+        switch (types[i]) {
+            case INT32: {
+                int value = rs.getInt(i);
+                if (!rs.wasNull()) {
+                    ((IntVector) vector).setSafe(row, value);
+                }
+                break;
+            }
+            case INT64: {
+                long value = rs.getLong(i);
+                if (!rs.wasNull()) {
+                    ((BigIntVector) vector).setSafe(row, value);
+                }
+                break;
+            }
+            case FLOAT: {
+                float value = rs.getFloat(i);
+                if (!rs.wasNull()) {
+                    ((Float4Vector) vector).setSafe(row, value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(i);
+                if (!rs.wasNull()) {
+                    ((Float8Vector) vector).setSafe(row, value);
+                }
+                break;
+            }
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(i);
+                if (!rs.wasNull()) {
+                    ((BitVector) vector).setSafe(row, value ? 1 : 0);
+                }
+                break;
+            }
+            case DATE: {
+                Date value = rs.getDate(i, utc);
+                if (value != null) {
+                    ((DateDayVector) vector).setSafe(row, Relational_NativeType.toDays(value));
+                }
+                break;
+            }
+            case TIME: {
+                Timestamp value = rs.getTimestamp(i, utc);
+                if (value != null) {
+                    ((TimeMicroVector) vector).setSafe(row, Relational_NativeType.toMicrosOfDay(value));
+                }
+                break;
+            }
+            case TIMESTAMP: {
+                // WALL CLOCK TIME READ AS UTC SO THE TIME ZONE OF THE HOST DOES NOT SHIFT IT
+                Timestamp value = rs.getTimestamp(i, utc);
+                if (value != null) {
+                    ((TimeStampVector) vector).setSafe(row, Relational_NativeType.toMicros(value));
+                }
+                break;
+            }
+            case TIMESTAMP_UTC: {
+                Timestamp value = rs.getTimestamp(i);
+                if (value != null) {
+                    ((TimeStampVector) vector).setSafe(row, Relational_NativeType.toMicros(value));
+                }
+                break;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(i);
+                if (value != null) {
+                    ((DecimalVector) vector).setSafe(row, value.setScale(scales[i], RoundingMode.HALF_UP));
+                }
+                break;
+            }
+            case BYTES: {
+                byte[] value = rs.getBytes(i);
+                if (value != null) {
+                    ((VarBinaryVector) vector).setSafe(row, value);
+                }
+                break;
+            }
+            case BLOB_REFERENCE: {
+                Blob blob = rs.getBlob(i);
+                if (blob != null) {
+                    if (blobBuffer == null) {
+                        blobBuffer = new byte[64 * 1024];
+                    }
+                    ((VarCharVector) vector).setSafe(row, blobStore.store(blob, blobBuffer, progress.isDurable()).getBytes(StandardCharsets.UTF_8));
+                }
+                break;
+            }
+            default: {
+                String value = rs.getString(i);
+                if (value != null) {
+                    ((VarCharVector) vector).setSafe(row, value.getBytes(StandardCharsets.UTF_8));
+                }
+                break;
+            }
+        }
+    }
+
+    /*
+     * Writes the rows collected so far as one record batch and clears the vectors for the next one
+     */
+    private void writeBatch() throws IOException {
+        if (rowsInBatch == 0) {
+            return;
+        }
+
+        // THE ROW COUNT OF THE ROOT DOES NOT CARRY DOWN TO ITS VECTORS
+        for (FieldVector vector : vectors) {
+            vector.setValueCount(rowsInBatch);
+        }
+        root.setRowCount(rowsInBatch);
+        out.writeBatch();
+
+        // EVERY VECTOR TYPE WRITTEN HERE IS FIXED OR VARIABLE WIDTH
+        for (FieldVector vector : vectors) {
+            if (vector instanceof BaseVariableWidthVector) {
+                ((BaseVariableWidthVector) vector).reset();
+            } else {
+                ((BaseFixedWidthVector) vector).reset();
+            }
+        }
+        rowsInBatch = 0;
+    }
+
+    private void closeChunk() throws IOException {
+        try {
+            writeBatch();
+            out.end();
+        } finally {
+            out.close();
+            channel.close();
+            out = null;
+        }
+        Relational_ChunkPolicy.publish(chunkFile, progress.isDurable());
+        progress.chunkDone(chunkCount, rowsWritten, lastKey);
+    }
+
+    /*
+     * Closes the last file and frees the vectors
+     */
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            closeChunk();
+        } finally {
+            root.close();
+            allocator.close();
+        }
+        if (rowsInChunk > 0) {
+            log(Level.INFO, "Arrow file " + fileName + "." + chunkCount + " complete (final partial file).", false);
+        }
+        log(Level.INFO, rowsWritten + " rows written to disk for " + fileName, false);
+    }
+
+    /*
+     * Drops the file being written after a failure and frees the vectors - the files already complete are kept
+     */
+    public void abort() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            channel.close();
+        } catch (IOException | RuntimeException ex) {
+        } finally {
+            out = null;
+            root.close();
+            allocator.close();
+        }
+        Relational_ChunkPolicy.partFile(chunkFile).delete();
+        log(Level.WARNING, "Arrow file " + fileName + "." + chunkCount + " dropped as the query did not complete", false);
+    }
+
+    /**
+     * @return the Arrow schema of the query
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Content addressed store for BLOB columns.
+ *
+ * Each BLOB is streamed from getBinaryStream() into a file named by the SHA-256 of
+ * its content, under a sub directory made of the first two characters of the hash
+ * (BLOB_DIR/ab/abcdef...). A BLOB that is already in the store is not kept twice.
+ * The cell written to the DSV file holds the path of the BLOB relative to BLOB_DIR.
+ * A store is shared by all the queries of an extraction.
+ *
+ * The path is only handed back once the file is in place - a thread that turns up
+ * the same content while another is still moving it waits for that thread, and fails
+ * with it. For an entry whose chunk files are forced to disk the BLOB files they refer
+ * to are forced to disk first.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_BlobStore {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path BLOB_DIR;
+
+    // hashes in the store or being moved into it - done once the file is in place, true when it was forced to disk
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> stored = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+    private final AtomicLong blobsWritten = new AtomicLong();
+    private final AtomicLong blobsDeduplicated = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public Relational_BlobStore(String BLOB_DIR) throws IOException {
+        this.BLOB_DIR = Paths.get(BLOB_DIR);
+        Files.createDirectories(this.BLOB_DIR);
+    }
+
+    /*
+     * Stores the content of a BLOB and returns its path relative to the store - durable forces the file to disk first
+     */
+    public String store(Blob blob, byte[] copyBuffer, boolean durable) throws SQLException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        // STREAM INTO A TEMP FILE, HASHING AS WE GO
+        Path tempFile = Files.createTempFile(BLOB_DIR, "blob", ".tmp");
+        long length = 0;
+        try {
+            InputStream in = blob.getBinaryStream();
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                int read;
+                while ((read = in.read(copyBuffer)) != -1) {
+                    digest.update(copyBuffer, 0, read);
+                    out.write(copyBuffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            String hash = toHex(digest.digest());
+            String reference = hash.substring(0, 2) + "/" + hash;
+
+            // KEEP THE FIRST COPY OF THE CONTENT ONLY - THE THREAD THAT ADDS THE HASH IS THE ONE THAT WRITES IT
+            Path target = BLOB_DIR.resolve(hash.substring(0, 2)).resolve(hash);
+            CompletableFuture<Boolean> placed = new CompletableFuture<Boolean>();
+            CompletableFuture<Boolean> first = stored.putIfAbsent(hash, placed);
+            if (first != null) {
+                boolean forced = awaitPlaced(first, reference);
+                if (durable && !forced) {
+                    forceInPlace(target);
+                }
+                blobsDeduplicated.incrementAndGet();
+                return reference;
+            }
+
+            try {
+                // ALREADY THERE FROM AN EARLIER EXTRACTION
+                if (Files.exists(target)) {
+                    if (durable) {
+                        forceInPlace(target);
+                    }
+                    placed.complete(durable);
+                    blobsDeduplicated.incrementAndGet();
+                    return reference;
+                }
+
+                Path dir = target.getParent();
+                boolean newDir = !Files.isDirectory(dir);
+                Files.createDirectories(dir);
+                if (durable) {
+                    force(tempFile);
+                }
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (durable) {
+                    Relational_ChunkPolicy.syncDirectory(dir.toFile());
+                    if (newDir) {
+                        Relational_ChunkPolicy.syncDirectory(BLOB_DIR.toFile());
+                    }
+                }
+                placed.complete(durable);
+            } catch (IOException | RuntimeException ex) {
+                // THE THREADS WAITING ON THIS COPY FAIL WITH IT, LATER ONES TRY AGAIN
+                stored.remove(hash, placed);
+                placed.completeExceptionally(ex);
+                throw ex;
+            }
+            blobsWritten.incrementAndGet();
+            bytesWritten.addAndGet(length);
+            return reference;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /*
+     * Waits for the thread storing the same content to move it into place
+     */
+    private static boolean awaitPlaced(CompletableFuture<Boolean> placed, String reference) throws IOException {
+        try {
+            return placed.join();
+        } catch (CompletionException ex) {
+            Throwable cause = (ex.getCause() == null) ? ex : ex.getCause();
+            throw new IOException("BLOB " + reference + " could not be stored: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static void forceInPlace(Path file) throws IOException {
+        force(file);
+        Relational_ChunkPolicy.syncDirectory(file.getParent().toFile());
+    }
+
+    private static void force(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /*
+     * Logs how many BLOBs were written and how many were already in the store
+     */
+    public void logSummary() {
+        log(Level.INFO, blobsWritten.get() + " BLOBs (" + bytesWritten.get() + " bytes) written to " + BLOB_DIR
+                + ", " + blobsDeduplicated.get() + " duplicate BLOBs referenced", true);
+    }
+}
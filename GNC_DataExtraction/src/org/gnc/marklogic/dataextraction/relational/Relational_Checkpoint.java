@@ -0,0 +1,249 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journal of the work an extraction has finished, so a run that died part way through
+ * can be started again without redoing it.
+ *
+ * Every line records one step and is forced to disk before the extraction moves on -
+ *
+ * CHUNK fileName N rows key - chunk file N of the entry has its final name, with rows
+ * rows written up to and including it and key the key of the last one (empty when the
+ * entry has no KEY column)
+ *
+ * DONE fileName - every row of the entry is on disk
+ *
+ * Fields are separated by tabs and entries are known by their file name (with the
+ * partition suffix for partitions). The last CHUNK line of an entry wins, so an entry
+ * that had to start over simply records its chunks again. A line cut short by a crash
+ * is ignored when the journal is read back.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_Checkpoint {
+
+    private final File journal;
+    private final Set<String> done = new HashSet<String>();
+    private final Map<String, String[]> chunks = new HashMap<String, String[]>();
+    private final FileOutputStream stream;
+    private final Writer out;
+
+    public Relational_Checkpoint(File journal) throws IOException {
+        this.journal = journal;
+
+        // READ BACK WHAT AN EARLIER RUN GOT THROUGH
+        boolean endsWithNewLine = true;
+        if (journal.exists() && journal.length() > 0) {
+            RandomAccessFile tail = new RandomAccessFile(journal, "r");
+            try {
+                tail.seek(journal.length() - 1);
+                endsWithNewLine = tail.read() == '\n';
+            } finally {
+                tail.close();
+            }
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8));
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    String next = in.readLine();
+
+                    // THE LAST LINE IS ONLY COMPLETE WHEN IT HAS ITS LINE BREAK
+                    if (next != null || endsWithNewLine) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields[0].equals("DONE") && fields.length == 2) {
+                            done.add(fields[1]);
+                        } else if (fields[0].equals("CHUNK") && fields.length == 5 && isNumber(fields[2]) && isNumber(fields[3])) {
+                            chunks.put(fields[1], fields);
+                        }
+                    }
+                    line = next;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        File parent = journal.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        stream = new FileOutputStream(journal, true);
+        out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+
+        // A LINE CUT SHORT BY A CRASH MUST NOT RUN INTO THE NEXT ONE
+        if (!endsWithNewLine) {
+            record("");
+        }
+    }
+
+    private static boolean isNumber(String field) {
+        try {
+            Long.parseLong(field);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true when an earlier run wrote out every row of the entry
+     */
+    public synchronized boolean isDone(String fileName) {
+        return done.contains(fileName);
+    }
+
+    /**
+     * @return how far an earlier run got with the entry
+     */
+    public synchronized Relational_EntryProgress getProgress(String fileName, String keyName) {
+        String[] chunk = chunks.get(fileName);
+        if (chunk == null) {
+            return new Relational_EntryProgress(this, fileName, keyName, 0, 0, null);
+        }
+        return new Relational_EntryProgress(this, fileName, keyName, Long.parseLong(chunk[2]), Long.parseLong(chunk[3]), decodeKey(chunk[4]));
+    }
+
+    /**
+     * @return the number of entries an earlier run finished or got part way through
+     */
+    public synchronized int getResumableCount() {
+        Set<String> entries = new HashSet<String>(done);
+        entries.addAll(chunks.keySet());
+        return entries.size();
+    }
+
+    synchronized void recordChunk(String fileName, long chunk, long rows, Object key) throws IOException {
+        String[] fields = new String[]{"CHUNK", fileName, "" + chunk, "" + rows, encodeKey(key)};
+        record(fields[0] + "\t" + fields[1] + "\t" + fields[2] + "\t" + fields[3] + "\t" + fields[4]);
+        chunks.put(fileName, fields);
+    }
+
+    /*
+     * Records that every row of the entry is on disk
+     */
+    public synchronized void recordDone(String fileName) throws IOException {
+        record("DONE\t" + fileName);
+        done.add(fileName);
+    }
+
+    private void record(String line) throws IOException {
+        out.write(line + "\n");
+        out.flush();
+        stream.getFD().sync();
+    }
+
+    /*
+     * Closes the journal, removing it when the extraction is complete so the next run starts afresh
+     */
+    public synchronized void close(boolean complete) throws IOException {
+        out.close();
+        if (complete) {
+            journal.delete();
+        }
+    }
+
+    /*
+     * Keys are written with a letter for their type - N whole number, D decimal, T timestamp, S text
+     */
+    static String encodeKey(Object key) {
+        if (key == null) {
+            return "";
+        } else if (key instanceof Long) {
+            return "N" + key;
+        } else if (key instanceof BigDecimal) {
+            return "D" + ((BigDecimal) key).toPlainString();
+        } else if (key instanceof Timestamp) {
+            return "T" + key;
+        }
+        StringBuilder text = new StringBuilder("S");
+        for (char c : key.toString().toCharArray()) {
+            switch (c) {
+                case '\\':
+                    text.append("\\\\");
+                    break;
+                case '\t':
+                    text.append("\\t");
+                    break;
+                case '\r':
+                    text.append("\\r");
+                    break;
+                case '\n':
+                    text.append("\\n");
+                    break;
+                default:
+                    text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    static Object decodeKey(String field) {
+        if (field.isEmpty()) {
+            return null;
+        }
+        String value = field.substring(1);
+        try {
+            switch (field.charAt(0)) {
+                case 'N':
+                    return Long.parseLong(value);
+                case 'D':
+                    return new BigDecimal(value);
+                case 'T':
+                    return Timestamp.valueOf(value);
+                case 'S':
+                    break;
+                default:
+                    return null;
+            }
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char escaped = value.charAt(++i);
+                text.append(escaped == 't' ? '\t' : escaped == 'r' ? '\r' : escaped == 'n' ? '\n' : escaped);
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.gnc.marklogic.dataextraction.ParallelGzipOutputStream;
+
+/**
+ * Gzip compression of the chunk files on a pool of worker threads shared by all queries.
+ *
+ * Level 1 is the fastest, 9 gives the smallest files and -1 is the gzip default (6).
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ChunkCompression {
+
+    private final ExecutorService executor;
+    private final int level;
+    private final int threads;
+
+    public Relational_ChunkCompression(int level, int threads) {
+        this.level = level;
+        this.threads = Math.max(threads, 1);
+        this.executor = Executors.newFixedThreadPool(this.threads);
+    }
+
+    /*
+     * Wraps the output stream of a chunk file so that it is compressed as it is written
+     */
+    public OutputStream wrap(OutputStream out) {
+        // ENOUGH BLOCKS QUEUED TO KEEP EVERY WORKER BUSY
+        return new ParallelGzipOutputStream(out, executor, level, threads * 2);
+    }
+
+    /**
+     * @return the extension added to the chunk file names
+     */
+    public String getSuffix() {
+        return ".gz";
+    }
+
+    /**
+     * @return a description for the log
+     */
+    public String describe() {
+        return "gzip level " + level + " on " + threads + " threads";
+    }
+
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
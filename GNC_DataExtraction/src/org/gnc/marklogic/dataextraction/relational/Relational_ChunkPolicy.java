@@ -0,0 +1,176 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * When a chunk file is full, and how a finished chunk file is handed to the loaders.
+ *
+ * A chunk file is full once it has chunkRows rows, chunkBytes bytes on disk or has been
+ * open for chunkMillis, whichever comes first - a limit of 0 or less is not used. Every
+ * chunk file has at least one row and a row is never split between two files.
+ *
+ * Chunk files are written as fileName.N.dsv.part and only renamed to their final name
+ * once they are complete, so a loader watching the output directory never picks up a
+ * file that is still being written. When the chunk has to be durable before the
+ * extraction moves on (it is recorded in a checkpoint or a watermark depends on it)
+ * the file is forced to disk before it is renamed and the directory after.
+ *
+ * Before an entry is written, the chunk files an earlier run left past the chunks the
+ * entry carries on from are removed. This covers every chunk when it starts over. A
+ * run that writes fewer chunks than the last one then doesn't leave stale chunks next to
+ * the new ones.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ChunkPolicy {
+
+    public static final String PART_SUFFIX = ".part";
+
+    private final long chunkRows;
+    private final long chunkBytes;
+    private final long chunkMillis;
+
+    public Relational_ChunkPolicy(long chunkRows, long chunkBytes, long chunkMillis) {
+        this.chunkRows = chunkRows;
+        this.chunkBytes = chunkBytes;
+        this.chunkMillis = chunkMillis;
+    }
+
+    /*
+     * True when a chunk with the given rows and bytes, opened at the given time, should not get another row
+     */
+    public boolean isFull(long rows, long bytes, long openedAt) {
+        if (rows == 0) {
+            return false;
+        }
+        return (chunkRows > 0 && rows >= chunkRows)
+                || (chunkBytes > 0 && bytes >= chunkBytes)
+                || (chunkMillis > 0 && System.currentTimeMillis() - openedAt >= chunkMillis);
+    }
+
+    /**
+     * @return how many more rows fit in a chunk that has the given rows
+     */
+    public long rowsLeft(long rows) {
+        return (chunkRows > 0) ? Math.max(chunkRows - rows, 0) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return how many more bytes fit in a chunk that has the given bytes
+     */
+    public long bytesLeft(long bytes) {
+        return (chunkBytes > 0) ? Math.max(chunkBytes - bytes, 0) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the file a chunk is written to until it is complete
+     */
+    public static File partFile(File chunkFile) {
+        return new File(chunkFile.getPath() + PART_SUFFIX);
+    }
+
+    /*
+     * Gives a complete chunk file its final name in one step
+     */
+    public static void publish(File chunkFile, boolean durable) throws IOException {
+        File part = partFile(chunkFile);
+        if (durable) {
+            FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+        try {
+            Files.move(part.toPath(), chunkFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(part.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (durable) {
+            syncDirectory(chunkFile.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /*
+     * Removes the chunk files of an entry (complete or .part) numbered after chunksDone, returning their names
+     */
+    public static List<String> removeChunksAfter(String OUTPUT_DIR, String fileName, long chunksDone) throws IOException {
+        List<String> removed = new ArrayList<String>();
+        File[] files = new File(OUTPUT_DIR.equals("") ? "." : OUTPUT_DIR).listFiles();
+        if (files == null) {
+            return removed;
+        }
+        Pattern chunkName = Pattern.compile(Pattern.quote(fileName) + "\\.(\\d{1,18})\\.(dsv|dsv\\.gz|parquet|arrow)(" + Pattern.quote(PART_SUFFIX) + ")?");
+        for (File file : files) {
+            Matcher m = chunkName.matcher(file.getName());
+            if (m.matches() && file.isFile() && Long.parseLong(m.group(1)) > chunksDone) {
+                Files.delete(file.toPath());
+                removed.add(file.getName());
+            }
+        }
+        return removed;
+    }
+
+    /*
+     * Forces the entries of a directory to disk so a rename in it survives a crash - not
+     * possible on every platform (Windows), where the rename is left to the file system
+     */
+    static void syncDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * @return a description for the log
+     */
+    public String describe() {
+        String description = "";
+        if (chunkRows > 0) {
+            description += ", " + chunkRows + " rows";
+        }
+        if (chunkBytes > 0) {
+            description += ", " + (chunkBytes / (1024 * 1024)) + " MB";
+        }
+        if (chunkMillis > 0) {
+            description += ", " + (chunkMillis / 1000) + " seconds";
+        }
+        return description.isEmpty() ? "no limit" : description.substring(2);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+
+import org.gnc.marklogic.dataextraction.OutputSink;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.getEstimatedCompleteDate;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Writes batches of encoded rows to the chunk files of a query.
+ *
+ * Starts a new chunk file (fileName.N.dsv) whenever the chunk policy says the
+ * current one is full (rows, bytes or time), writes the column headers at the top of each file and leaves out the line break in front
+ * of the first row of a file when there are no headers. A row that is split
+ * between batches is always kept in one chunk file, and a chunk file is never completed
+ * with part of a row at the end. Each chunk file is renamed to
+ * its final name once it is complete and reported to the progress of the entry, which
+ * also gives the chunk number to carry on from when the entry is resumed. After a
+ * failure the chunk being written is dropped instead. With compression the chunk
+ * files are gzipped (fileName.N.dsv.gz) on the compression worker pool. Files are
+ * UTF-8 and go through an OutputSink, which forces them to disk as the sync policy says.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ChunkWriter {
+
+    private final String OUTPUT_DIR;
+    private final String fileName;
+    private final String columnHeaders;
+    private final boolean NO_HEADER;
+    private final Relational_ChunkPolicy policy;
+    private final long rowCount;
+    private final long queryStartTime;
+    private final Relational_ChunkCompression compression;
+    private final long syncBytes;
+    private final Relational_EntryProgress progress;
+
+    private Writer out = null;
+    private OutputSink sink = null;
+    private File chunkFile = null;
+    private long chunkOpenedAt = 0;
+    private long chunkCount = 0;
+    private long rowsInChunk = 0;
+    private long rowsWritten = 0;
+    private Object lastKey = null;
+    private boolean rowOpen = false;
+    private char[] scratch = new char[64 * 1024];
+
+    public Relational_ChunkWriter(String OUTPUT_DIR, String fileName, String columnHeaders, boolean NO_HEADER,
+            Relational_ChunkPolicy policy, long rowCount, long queryStartTime, Relational_ChunkCompression compression, long syncBytes,
+            Relational_EntryProgress progress) throws IOException {
+        this.OUTPUT_DIR = OUTPUT_DIR;
+        this.fileName = fileName;
+        this.columnHeaders = columnHeaders;
+        this.NO_HEADER = NO_HEADER;
+        this.policy = policy;
+        this.rowCount = rowCount;
+        this.queryStartTime = queryStartTime;
+        this.compression = compression;
+        this.syncBytes = syncBytes;
+        this.progress = progress;
+
+        // CARRY ON AFTER THE CHUNKS A RESUMED ENTRY ALREADY HAS
+        this.chunkCount = progress.getChunksDone();
+        this.rowsWritten = progress.getRowsDone();
+
+        // IF OUTPUT DIR DOES NOT EXIST -> CREATE IT
+        File outputDir = new File(OUTPUT_DIR);
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+
+        // CREATE INITIAL FILE
+        openChunk();
+    }
+
+    private void openChunk() throws IOException {
+        chunkCount++;
+        rowsInChunk = 0;
+        chunkOpenedAt = System.currentTimeMillis();
+        String chunkName = OUTPUT_DIR + fileName + "." + chunkCount + ".dsv";
+        chunkFile = new File((compression != null) ? chunkName + compression.getSuffix() : chunkName);
+
+        // WRITTEN UNDER A TEMPORARY NAME UNTIL COMPLETE
+        sink = new OutputSink(Relational_ChunkPolicy.partFile(chunkFile), syncBytes);
+        if (compression != null) {
+            out = new OutputStreamWriter(compression.wrap(sink.getStream()), StandardCharsets.UTF_8);
+        } else {
+            // ENCODED STRAIGHT INTO THE FILE BUFFER
+            out = sink;
+        }
+        if (!NO_HEADER) {
+            out.write(columnHeaders);
+        }
+    }
+
+    /*
+     * Writes the rows of a batch, moving on to the next chunk file whenever the chunk is full
+     */
+    public void write(Relational_RowBatch batch) throws IOException {
+        StringBuilder rows = batch.getRows();
+        int row = 0;
+
+        // FINISH THE ROW LEFT OPEN BY THE PREVIOUS BATCH
+        if (rowOpen) {
+            if (batch.getRowCount() == 0) {
+                writeRange(rows, 0, rows.length());
+                return;
+            }
+            writeRange(rows, 0, batch.getRowEnd(0));
+            lastKey = batch.getKey(0);
+            rowOpen = false;
+            rowsInChunk++;
+            rowsWritten++;
+            row = 1;
+        }
+
+        while (row < batch.getRowCount()) {
+            startRow();
+
+            // WRITE AS MANY ROWS AS FIT IN THE CURRENT CHUNK IN ONE GO
+            int start = rowStart(batch, row);
+            int lastRow = row + (int) Math.min(batch.getRowCount() - row, Math.max(policy.rowsLeft(rowsInChunk), 1));
+            long bytesLeft = policy.bytesLeft(sink.getBytesWritten());
+            if (bytesLeft != Long.MAX_VALUE) {
+                // CHARS STAND IN FOR BYTES - THE REAL SIZE IS CHECKED AGAIN BEFORE THE NEXT ROW
+                int fitRow = row + 1;
+                while (fitRow < lastRow && batch.getRowEnd(fitRow) - start <= bytesLeft) {
+                    fitRow++;
+                }
+                lastRow = fitRow;
+            }
+            writeRange(rows, start, batch.getRowEnd(lastRow - 1));
+            lastKey = batch.getKey(lastRow - 1);
+
+            rowsInChunk += lastRow - row;
+            rowsWritten += lastRow - row;
+            row = lastRow;
+        }
+
+        // START OF A ROW THAT CARRIES ON IN THE NEXT BATCH
+        if (batch.hasOpenRow()) {
+            startRow();
+            writeRange(rows, rowStart(batch, row), rows.length());
+            rowOpen = true;
+        }
+    }
+
+    private void startRow() throws IOException {
+        // CREATE NEW OUTPUT FILE EVERYTIME THE CHUNK IS FULL
+        if (policy.isFull(rowsInChunk, sink.getBytesWritten(), chunkOpenedAt)) {
+            rollChunk();
+        }
+    }
+
+    private int rowStart(Relational_RowBatch batch, int row) {
+        int start = batch.getRowStart(row);
+        if (NO_HEADER && rowsInChunk == 0) {
+            // SUPPORT NO HEADERS - FIRST ROW OF A FILE WITHOUT HEADERS HAS NO LEADING "\r\n"
+            start += 2;
+        }
+        return start;
+    }
+
+    private void writeRange(StringBuilder rows, int start, int end) throws IOException {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        }
+        rows.getChars(start, end, scratch, 0);
+        out.write(scratch, 0, length);
+    }
+
+    private void rollChunk() throws IOException {
+        closeChunk();
+        log(Level.INFO, "Chunk file " + fileName + "." + chunkCount + " complete.", false);
+
+        // LOG PERCENT COMPLETE AND EST TIME LEFT
+        if (rowCount != 0) {
+            System.out.println("Current estimated completion time for " + fileName + ": " + getEstimatedCompleteDate(queryStartTime, rowsWritten, rowCount));
+        } else {
+            System.out.println("Estimated completion time unavailable for " + fileName);
+        }
+        openChunk();
+    }
+
+    /*
+     * Closes the last chunk file
+     */
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        // A ROW LEFT OPEN WOULD BE CUT SHORT IN THE CHUNK FILE
+        if (rowOpen) {
+            abort();
+            throw new IOException("Chunk file " + fileName + "." + chunkCount + " dropped as its last row is not complete");
+        }
+        closeChunk();
+        if (rowsInChunk > 0) {
+            log(Level.INFO, "Chunk file " + fileName + "." + chunkCount + " complete (final partial file).", false);
+        }
+        log(Level.INFO, rowsWritten + " rows written to disk for " + fileName, false);
+    }
+
+    private void closeChunk() throws IOException {
+        try {
+            out.close();
+        } finally {
+            out = null;
+        }
+        Relational_ChunkPolicy.publish(chunkFile, progress.isDurable());
+        progress.chunkDone(chunkCount, rowsWritten, lastKey);
+    }
+
+    /*
+     * Drops the chunk file being written after a failure - the chunk files already complete are kept
+     */
+    public void abort() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+        } finally {
+            out = null;
+        }
+        Relational_ChunkPolicy.partFile(chunkFile).delete();
+        log(Level.WARNING, "Chunk file " + fileName + "." + chunkCount + " dropped as the query did not complete", false);
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+/**
+ * The ways a relational column can be read from the result set and written to the output.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public enum Relational_ColumnCodec {
+
+    OBJECT("getObject, written as returned by the driver"),
+    CHAR("getString, quoted and cleaned"),
+    TEXT("getString, quoted and cleaned keeping &, < and >"),
+    DATE("getTimestamp, formatted with DATE_FORMAT"),
+    CLOB("getClob, quoted and cleaned"),
+    BLOB("getBlob, quoted list of bytes"),
+    LONG("getLong"),
+    INT("getInt"),
+    DOUBLE("getDouble"),
+    FLOAT("getFloat");
+
+    private final String description;
+
+    Relational_ColumnCodec(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @return how the column is read and written
+     */
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How each column of a query is encoded, compiled once from the ResultSetMetaData.
+ *
+ * Codecs are picked from the java.sql.Types of the column and the database type. The type
+ * name is only looked at where the output has always depended on it (e.g. MSSQL datetime vs
+ * datetime2), so the default plan writes what the extraction always has - except MSSQL varbinary
+ * and image columns, which are BLOBs rather than the name of a byte array. Any column
+ * can be overridden from the settings file with ORACLE_COLUMN_CODECS / MSSQL_COLUMN_CODECS:
+ *
+ * COLUMN=CODEC,FILE_NAME.COLUMN=CODEC,...
+ *
+ * where FILE_NAME is the file name of a query file entry, limiting the override to that entry.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ColumnPlan {
+
+    private final int colCount;
+    private final String[] labels;
+    private final String[] typeNames;
+    private final Relational_ColumnCodec[] codecs;
+    private final boolean[] overridden;
+
+    public Relational_ColumnPlan(ResultSetMetaData rsmd, String DB_TYPE, String fileName, Map<String, Relational_ColumnCodec> overrides) throws SQLException {
+        colCount = rsmd.getColumnCount();
+        labels = new String[colCount + 1];
+        typeNames = new String[colCount + 1];
+        codecs = new Relational_ColumnCodec[colCount + 1];
+        overridden = new boolean[colCount + 1];
+
+        for (int i = 1; i <= colCount; i++) {
+            labels[i] = rsmd.getColumnLabel(i);
+            typeNames[i] = rsmd.getColumnTypeName(i);
+
+            Relational_ColumnCodec override = overrides.get((fileName + "." + labels[i]).toUpperCase());
+            if (override == null) {
+                override = overrides.get(labels[i].toUpperCase());
+            }
+
+            if (override != null) {
+                codecs[i] = override;
+                overridden[i] = true;
+            } else {
+                codecs[i] = resolve(rsmd.getColumnType(i), typeNames[i], rsmd.getPrecision(i), rsmd.getScale(i), DB_TYPE);
+            }
+        }
+    }
+
+    /*
+     * Picks the codec for a column from its java.sql.Types and the database type
+     */
+    public static Relational_ColumnCodec resolve(int sqlType, String typeName, int precision, int scale, String DB_TYPE) {
+        String columnType = typeName == null ? "" : typeName.toUpperCase();
+
+        if (DB_TYPE.equals("ORACLE")) {
+            switch (sqlType) {
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                    return Relational_ColumnCodec.CHAR;
+                case Types.DATE:
+                case Types.TIMESTAMP:
+                    return Relational_ColumnCodec.DATE;
+                case Types.CLOB:
+                case Types.NCLOB:
+                    return Relational_ColumnCodec.CLOB;
+                case Types.BLOB:
+                    return Relational_ColumnCodec.BLOB;
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    return isWholeNumber(precision, scale) ? Relational_ColumnCodec.LONG : Relational_ColumnCodec.OBJECT;
+                default:
+                    return Relational_ColumnCodec.OBJECT;
+            }
+        } else if (DB_TYPE.equals("MSSQL")) {
+            switch (sqlType) {
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                    // uniqueidentifier is reported as CHAR but has always been written unquoted
+                    return columnType.contains("CHAR") ? Relational_ColumnCodec.CHAR : Relational_ColumnCodec.OBJECT;
+                case Types.LONGVARCHAR:
+                case Types.LONGNVARCHAR:
+                    // varchar(max) / nvarchar(max) vs text / ntext vs xml
+                    if (columnType.contains("CHAR")) {
+                        return Relational_ColumnCodec.CHAR;
+                    }
+                    return columnType.contains("TEXT") ? Relational_ColumnCodec.TEXT : Relational_ColumnCodec.OBJECT;
+                case Types.TIMESTAMP:
+                    // only datetime is formatted, datetime2 and smalldatetime are written as returned
+                    return columnType.equals("DATETIME") ? Relational_ColumnCodec.DATE : Relational_ColumnCodec.OBJECT;
+                case Types.BIGINT:
+                    return Relational_ColumnCodec.LONG;
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    return Relational_ColumnCodec.INT;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                    return Relational_ColumnCodec.DOUBLE;
+                case Types.REAL:
+                    return Relational_ColumnCodec.FLOAT;
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    return isWholeNumber(precision, scale) ? Relational_ColumnCodec.LONG : Relational_ColumnCodec.OBJECT;
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                    // varbinary / image - getObject only ever wrote the name of the byte array, so they go the BLOB way
+                    return Relational_ColumnCodec.BLOB;
+                default:
+                    return Relational_ColumnCodec.OBJECT;
+            }
+        }
+        return Relational_ColumnCodec.OBJECT;
+    }
+
+    // NUMBER(p,0) / DECIMAL(p,0) columns that always fit in a long
+    private static boolean isWholeNumber(int precision, int scale) {
+        return scale == 0 && precision > 0 && precision <= 18;
+    }
+
+    /*
+     * Reads column codec overrides from the settings file - COLUMN=CODEC,FILE_NAME.COLUMN=CODEC,...
+     */
+    public static Map<String, Relational_ColumnCodec> parseOverrides(String setting) throws IOException {
+        Map<String, Relational_ColumnCodec> overrides = new HashMap<String, Relational_ColumnCodec>();
+        if (setting == null || setting.trim().equals("")) {
+            return overrides;
+        }
+        for (String override : setting.split(",")) {
+            String[] parts = override.split("=");
+            try {
+                overrides.put(parts[0].trim().toUpperCase(), Relational_ColumnCodec.valueOf(parts[1].trim().toUpperCase()));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+                throw new IOException("Invalid column codec override " + override + " - expected COLUMN=CODEC where CODEC is one of OBJECT, CHAR, TEXT, DATE, CLOB, BLOB, LONG, INT, DOUBLE, FLOAT");
+            }
+        }
+        return overrides;
+    }
+
+    /*
+     * Describes how every column will be encoded, for the log
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= colCount; i++) {
+            sb.append(System.getProperty("line.separator"))
+                    .append("    ").append(i).append(" ").append(labels[i])
+                    .append(" (").append(typeNames[i]).append(") -> ").append(codecs[i])
+                    .append(overridden[i] ? " [override]" : "")
+                    .append(": ").append(codecs[i].getDescription());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return colCount;
+    }
+
+    /**
+     * @param i the column index, starting at 1
+     * @return the codec of the column
+     */
+    public Relational_ColumnCodec getCodec(int i) {
+        return codecs[i];
+    }
+}
@@ -23,19 +23,29 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.DateFormat;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,17 +53,12 @@ import org.gnc.marklogic.dataextraction.DataExtraction;
 
 import org.gnc.marklogic.dataextraction.ExtractHelper;
 import org.gnc.marklogic.dataextraction.LogFormatter;
+import org.gnc.marklogic.dataextraction.OutputSink;
 
 import static org.gnc.marklogic.dataextraction.ExtractHelper.calcTimeTakenInMs;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.cleanData;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.cleanDataText;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.cleanQueryText;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.formatJDBCString;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.getColumnHeadersStr;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.getEstimatedCompleteDate;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.getLineCount;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.getQueryFromFile;
-import static org.gnc.marklogic.dataextraction.ExtractHelper.isValidFilePath;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
 import static org.gnc.marklogic.dataextraction.ExtractHelper.validateEntry;
 
@@ -75,18 +80,38 @@ public class Relational_DataExtraction extends DataExtraction {
     private String USERNAME = "";
     private String PASSWORD = "";
     private int CHUNK_SIZE = 100000000;
+    private int CHUNK_MB = 0;
+    private int CHUNK_SECONDS = 0;
     private int FETCH_SIZE = 100000;
     private int OUTPUT_SIZE = 500;
+    private int THREADS = 1;
+    private int PIPELINE_DEPTH = 0;
+    private String BLOB_MODE = "INLINE";
+    private String BLOB_DIR;
+    private String COMPRESSION = "NONE";
+    private int COMPRESSION_LEVEL = -1;
+    private int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+    private String OUTPUT_FORMAT = "DSV";
+    private int PARQUET_ROW_GROUP_SIZE = 128 * 1024 * 1024;
+    private String PARQUET_COMPRESSION = "SNAPPY";
+    private String OUTPUT_SYNC = "NONE";
+    private long syncBytes = OutputSink.SYNC_NEVER;
+    private String CHECKPOINT_FILE = "";
+    private int RETRIES = 3;
+    private int RETRY_SECONDS = 30;
+    private String WATERMARK_FILE;
     private DAO myDao = null;
     private final String DB_TYPE;
     private String LOGS_DIR;
     private String QUERY_FILE_LOC;
     private String OUTPUT_DIR;
     private String DELIMITER;
+    private boolean LITERAL_DELIMITER = false;
     private String DATE_FORMAT;
     private boolean NO_HEADER = false;
     private boolean MSSQL_WINDOWS_AUTH = true;
     private String MSSQL_DATABASE_NAME = "";
+    private Map<String, Relational_ColumnCodec> COLUMN_CODECS = new HashMap<String, Relational_ColumnCodec>();
 
     private Logger LOGGER;
 
@@ -94,6 +119,26 @@ public class Relational_DataExtraction extends DataExtraction {
     private boolean exportComplete = false;
     private Properties props;
 
+    // connections handed out to query workers (only used when THREADS > 1)
+    private BlockingQueue<DAO> daoPool = null;
+    private final List<DAO> openDaos = Collections.synchronizedList(new ArrayList<DAO>());
+
+    // runs the writer stage of each query (only used when PIPELINE_DEPTH > 0)
+    private ExecutorService writerExecutor = null;
+
+    // sidecar files for BLOB columns (only used when BLOB_MODE is SIDECAR)
+    private Relational_BlobStore blobStore = null;
+
+    // compresses the chunk files (only used when COMPRESSION is GZIP)
+    private Relational_ChunkCompression compression = null;
+
+    // journal of the entries and chunks complete (only used when CHECKPOINT_FILE is set)
+    private Relational_Checkpoint checkpoint = null;
+    private final AtomicInteger failedEntries = new AtomicInteger();
+
+    // high-water marks of the entries with a WATERMARK column
+    private Relational_WatermarkStore watermarks = null;
+
     public Relational_DataExtraction(Logger LOGGER, Properties props, String DB_TYPE) {
         this.LOGGER = LOGGER;
         this.props = props;
@@ -143,95 +188,184 @@ public class Relational_DataExtraction extends DataExtraction {
             log(Level.INFO, "STARTING NEW " + DB_TYPE + " DATA EXTRACTION", true);
 
             // INIT VARIABLES
-            String entry, fileName, query, secondComp;
-            String countQuery = null;
-            //ResultSet rs = null;
-            long rowCount, currLineCount, totalLineCount;
-            String[] data;
+            String entry;
+            long currLineCount, totalLineCount;
             BufferedReader in;
+            ExecutorService executor = null;
+            Set<String> outputFileNames = new HashSet<String>();
+
+            // WRITE BLOBS TO THEIR OWN FILES
+            if (BLOB_MODE.equalsIgnoreCase("SIDECAR")) {
+                blobStore = new Relational_BlobStore(BLOB_DIR);
+                log(Level.INFO, "Writing BLOB columns to " + BLOB_DIR, true);
+            } else if (!BLOB_MODE.equalsIgnoreCase("INLINE")) {
+                log(Level.SEVERE, "Unknown " + DB_TYPE + "_BLOB_MODE " + BLOB_MODE + " - expected INLINE or SIDECAR", true);
+                System.exit(1);
+            }
 
-            // GET DB CONNECTION
-            DAOFactory daoFac = DAOFactory.getInstance();
-
-            if (DB_TYPE.equals("ORACLE")) {
-                myDao = daoFac.getDAO(DB_TYPE);
-                String formattedJDBCStr = formatJDBCString(SID, SERVICE_NAME, HOST, PORT);
-                myDao.openConnection(formattedJDBCStr, USERNAME, PASSWORD);
-            } else if (DB_TYPE.equals("MSSQL")) {
-                myDao = daoFac.getDAO(DB_TYPE);
-                // Determines if Windows Authentication or Server Authentication will be used to connect
-                if (MSSQL_WINDOWS_AUTH) {
-                    String url = "jdbc:sqlserver://";
-                    String selectMethod = "cursor";
-                    String connStr = url + HOST + ":" + PORT + ";integratedSecurity=" + MSSQL_WINDOWS_AUTH + ";databaseName=" + MSSQL_DATABASE_NAME + ";selectMethod=" + selectMethod + ";";
-                    myDao.openConnection(connStr);
+            // CHECK OUTPUT FORMAT
+            if (OUTPUT_FORMAT.equalsIgnoreCase("PARQUET")) {
+                log(Level.INFO, "Writing Parquet files with " + PARQUET_COMPRESSION + " compression and row groups of " + PARQUET_ROW_GROUP_SIZE + " bytes", true);
+                if (!COMPRESSION.equalsIgnoreCase("NONE")) {
+                    log(Level.WARNING, DB_TYPE + "_COMPRESSION only applies to DSV files - use " + DB_TYPE + "_PARQUET_COMPRESSION for Parquet", true);
+                    COMPRESSION = "NONE";
+                }
+            } else if (OUTPUT_FORMAT.equalsIgnoreCase("ARROW")) {
+                log(Level.INFO, "Writing Arrow IPC files with record batches of " + FETCH_SIZE + " rows", true);
+                if (!COMPRESSION.equalsIgnoreCase("NONE")) {
+                    log(Level.WARNING, DB_TYPE + "_COMPRESSION only applies to DSV files - Arrow files are written uncompressed", true);
+                    COMPRESSION = "NONE";
+                }
+            } else if (!OUTPUT_FORMAT.equalsIgnoreCase("DSV")) {
+                log(Level.SEVERE, "Unknown " + DB_TYPE + "_OUTPUT_FORMAT " + OUTPUT_FORMAT + " - expected DSV, PARQUET or ARROW", true);
+                System.exit(1);
+            }
+
+            // COMPRESS CHUNK FILES ON A WORKER POOL - ALWAYS BEHIND A SEPARATE WRITER THREAD SO FETCHING NEVER WAITS ON IT
+            if (COMPRESSION.equalsIgnoreCase("GZIP")) {
+                compression = new Relational_ChunkCompression(COMPRESSION_LEVEL, COMPRESSION_THREADS);
+                log(Level.INFO, "Compressing chunk files with " + compression.describe(), true);
+                if (PIPELINE_DEPTH == 0) {
+                    PIPELINE_DEPTH = 2;
+                }
+            } else if (!COMPRESSION.equalsIgnoreCase("NONE")) {
+                log(Level.SEVERE, "Unknown " + DB_TYPE + "_COMPRESSION " + COMPRESSION + " - expected NONE or GZIP", true);
+                System.exit(1);
+            }
+
+            log(Level.INFO, "Chunk files roll over at " + new Relational_ChunkPolicy(CHUNK_SIZE, CHUNK_MB * 1024L * 1024L, CHUNK_SECONDS * 1000L).describe(), true);
+
+            // HOW OFTEN CHUNK FILES ARE FORCED TO DISK
+            try {
+                syncBytes = OutputSink.parseSync(OUTPUT_SYNC);
+            } catch (IllegalArgumentException ex) {
+                log(Level.SEVERE, "Unknown " + DB_TYPE + "_OUTPUT_SYNC " + OUTPUT_SYNC + " - expected NONE, CLOSE or a number of MB", true);
+                System.exit(1);
+            }
+
+            // RECORD WHAT IS COMPLETE SO A FAILED RUN CAN BE PICKED UP WHERE IT STOPPED
+            if (!CHECKPOINT_FILE.equals("")) {
+                checkpoint = new Relational_Checkpoint(new File(CHECKPOINT_FILE));
+                if (checkpoint.getResumableCount() > 0) {
+                    log(Level.INFO, "Resuming from checkpoint " + CHECKPOINT_FILE + " - " + checkpoint.getResumableCount() + " entries were finished or started by an earlier run", true);
                 } else {
-                    String connStr = "jdbc:sqlserver://" + HOST + ";integratedSecurity=false;port=" + PORT;
-                    myDao.openConnection(connStr, USERNAME, PASSWORD);
+                    log(Level.INFO, "Recording progress in checkpoint " + CHECKPOINT_FILE, true);
                 }
-            } else {
-                ExtractHelper.log(Level.SEVERE, "Invalid DB TYPE Specified. Exiting", false);
-                System.exit(-1);
             }
 
-            Connection conn = myDao.getConnection();
-            PreparedStatement pstmt;
+            // MARKS LEFT IN OUTPUT_DIR BY EARLIER RUNS MOVE TO WHERE THEY ARE KEPT NOW, RATHER THAN STARTING OVER
+            File watermarkFile = new File(WATERMARK_FILE);
+            File oldWatermarkFile = new File(OUTPUT_DIR + "watermarks.properties");
+            if (WATERMARK_FILE.equals(LOGS_DIR + "watermarks.properties") && !watermarkFile.exists() && oldWatermarkFile.exists()
+                    && !watermarkFile.getAbsoluteFile().equals(oldWatermarkFile.getAbsoluteFile())) {
+                File parent = watermarkFile.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                if (oldWatermarkFile.renameTo(watermarkFile)) {
+                    log(Level.INFO, "Moved watermarks from " + oldWatermarkFile + " to " + watermarkFile, true);
+                } else {
+                    log(Level.WARNING, "Unable to move watermarks from " + oldWatermarkFile + " to " + watermarkFile + " - reading them where they are", true);
+                    watermarkFile = oldWatermarkFile;
+                }
+            }
+            watermarks = new Relational_WatermarkStore(watermarkFile);
+
+            // GET DB CONNECTION
+            myDao = openDAO();
+
+            // CREATE POOL OF WORKER CONNECTIONS - ONE PER THREAD, FIRST ONE IS THE MAIN CONNECTION
+            if (THREADS > 1) {
+                daoPool = new ArrayBlockingQueue<DAO>(THREADS);
+                daoPool.add(myDao);
+                for (int i = 1; i < THREADS; i++) {
+                    daoPool.add(openDAO());
+                }
+                executor = Executors.newFixedThreadPool(THREADS);
+                log(Level.INFO, "Running up to " + THREADS + " queries in parallel", true);
+            }
+
+            // FETCH AND WRITE ON SEPARATE THREADS
+            if (PIPELINE_DEPTH > 0) {
+                writerExecutor = Executors.newCachedThreadPool();
+                log(Level.INFO, "Writing to disk on a separate thread, up to " + PIPELINE_DEPTH + " batches of " + OUTPUT_SIZE + " rows ahead of the writer", true);
+            }
 
             // LOOP THROUGH ENTRIES IN QUERY FILE
             totalLineCount = getLineCount(QUERY_FILE_LOC);
             in = new BufferedReader(new FileReader(QUERY_FILE_LOC));
             currLineCount = 0;
             while (((entry = in.readLine()) != null)) {
+                currLineCount++;
+                log(Level.INFO, "Processing Query " + currLineCount + "/" + totalLineCount + "", true);
                 try {
-                    currLineCount++;
-                    log(Level.INFO, "Processing Query " + currLineCount + "/" + totalLineCount + "", true);
                     // CHECK FOR VALID INPUT
                     boolean isValidEntry = validateEntry(entry);
                     if (isValidEntry) {
+                        Relational_QueryEntry queryEntry = new Relational_QueryEntry(entry);
 
-                        // GET DATA FROM ENTRY LINE
-                        data = entry.split("###");
-                        fileName = data[0];
-                        secondComp = data[1];
-                        if (data.length == 3) {
-                            countQuery = cleanQueryText(data[2]);
+                        // TWO WORKERS WRITING THE SAME CHUNK FILES WOULD CORRUPT EACH OTHER
+                        if (executor != null && !outputFileNames.add(queryEntry.getFileName())) {
+                            log(Level.SEVERE, "Skipping line " + entry + " in " + QUERY_FILE_LOC + " as its file name is already used by another entry", true);
+                            continue;
                         }
 
-                        // IF SECOND COMPONENT IS A TXT FILE URI -> READ QUERY FROM FILE
-                        if (isValidFilePath(secondComp)) {
-                            query = getQueryFromFile(secondComp);
-                            log(Level.INFO, "Query Taken From File  " + query, false);
-                        } else {
-                            query = cleanQueryText(secondComp);
+                        // ONLY THE ROWS PAST THE WATERMARK OF THE LAST RUN, INTO FILES OF THEIR OWN
+                        if (queryEntry.getWatermarkColumn() != null) {
+                            Relational_Watermark watermark = startWatermark(queryEntry);
+                            if (watermark == null) {
+                                continue;
+                            }
+                            queryEntry = queryEntry.withWatermark(watermark);
                         }
 
-                        // GET ROW COUNT FROM TABLE
-                        rowCount = getRowCount(countQuery);
-
-                        // EXECUTE QUERY
-                        pstmt = conn.prepareStatement(query);
-                        pstmt.setFetchSize(FETCH_SIZE);
-
-                        log(Level.INFO, "Running query: " + query, true);
-                        if (rowCount != 0) {
-                            log(Level.INFO, "Row count is: " + rowCount, false);
+                        if (queryEntry.isPartitioned()) {
+                            List<Relational_QueryEntry> partitions = planPartitions(queryEntry);
+                            if (queryEntry.getWatermark() != null) {
+                                queryEntry.getWatermark().expectParts(partitions.size());
+                            }
+                            for (Relational_QueryEntry partition : partitions) {
+                                dispatch(executor, partition);
+                            }
+                        } else {
+                            dispatch(executor, queryEntry);
                         }
-
-                        // WRITE OUT DATA TO DISK
-                        this.outputToFile(pstmt, fileName, rowCount, CHUNK_SIZE);
-                        pstmt.close();
                     }
                 } catch (SQLException | IOException ex) {
                     log(Level.SEVERE, "Skipping line " + entry + " in " + QUERY_FILE_LOC + " due to exception: " + ex.getMessage() + "", true);
+                    failedEntries.incrementAndGet();
                 }
             }
 
+            // WAIT FOR ALL WORKERS TO FINISH
+            if (executor != null) {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            if (writerExecutor != null) {
+                writerExecutor.shutdown();
+            }
+            if (compression != null) {
+                compression.shutdown();
+            }
+            if (blobStore != null) {
+                blobStore.logSummary();
+            }
+
             // CLOSE CONNECTIONS
             try {
                 in.close();
             } catch (IOException | NullPointerException ex) {
             } finally {
-                myDao.closeConnection();
+                closeConnections();
+            }
+
+            // KEEP THE CHECKPOINT WHILE THERE ARE ENTRIES LEFT TO DO
+            if (checkpoint != null) {
+                checkpoint.close(failedEntries.get() == 0);
+                if (failedEntries.get() > 0) {
+                    log(Level.WARNING, failedEntries.get() + " entries did not complete - run again with the same " + DB_TYPE + "_CHECKPOINT_FILE to resume them", true);
+                }
             }
             log(Level.INFO, "DATA EXPORT COMPLETE", true);
             setExportComplete(true);
@@ -239,187 +373,381 @@ public class Relational_DataExtraction extends DataExtraction {
             log(Level.SEVERE, "PROCESS FAILED: " + ex + " " + ex.getMessage(), true);
         }
     }
+
     /*
-     * Outputs a a resultset of data (Table) to file of given filename
+     * Runs an entry in-line on the main connection, or hands it to the worker pool when running in parallel
      */
+    private void dispatch(ExecutorService executor, Relational_QueryEntry queryEntry) throws InterruptedException {
+        if (executor == null) {
+            processEntry(queryEntry, myDao);
+        } else {
+            executor.execute(new PooledEntry(queryEntry));
+        }
+    }
 
-    private void outputToFile(PreparedStatement pstmt, String fileName, long rowCount, int chunkSize) throws IOException, SQLException, InterruptedException {
-
-        long queryStartTime = new Date().getTime();
-        ResultSet rs = pstmt.executeQuery();
-
-        // GET COL HEADERS
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int colCount = rsmd.getColumnCount();
+    /*
+     * Works out the key ranges of a partitioned entry on a connection borrowed from the pool
+     */
+    private List<Relational_QueryEntry> planPartitions(Relational_QueryEntry queryEntry) throws SQLException, InterruptedException {
+        if (daoPool == null) {
+            log(Level.INFO, "Partitions of " + queryEntry.getFileName() + " will run one after another as " + DB_TYPE + "_THREADS is 1", true);
+        }
+        DAO dao = (daoPool == null) ? myDao : daoPool.take();
+        try {
+            long rowCount = getRowCount(dao.getConnection(), queryEntry);
+            List<Relational_QueryEntry> partitions = queryEntry.partition(dao.getConnection(), DB_TYPE);
+            for (Relational_QueryEntry partition : partitions) {
+                partition.setRowCount(rowCount / partitions.size());
+            }
+            return partitions;
+        } finally {
+            if (daoPool != null) {
+                daoPool.add(dao);
+            }
+        }
+    }
 
-        String columnHeaders = getColumnHeadersStr(rsmd, DELIMITER);
+    /*
+     * Runs a single query file entry on a connection borrowed from the pool
+     */
+    private class PooledEntry implements Runnable {
 
-        boolean newFile = true;
+        private final Relational_QueryEntry queryEntry;
 
-        // CREATE INITIAL FILE
-        File outputDir = new File(OUTPUT_DIR);
+        PooledEntry(Relational_QueryEntry queryEntry) {
+            this.queryEntry = queryEntry;
+        }
 
-        // IF OUTPUT DIR DOES NOT EXIST -> CREATE IT
-        if (!outputDir.exists()) {
-            outputDir.mkdir();
+        @Override
+        public void run() {
+            DAO dao = null;
+            try {
+                dao = daoPool.take();
+                processEntry(queryEntry, dao);
+            } catch (InterruptedException ex) {
+                log(Level.SEVERE, "Skipping " + queryEntry.getFileName() + " from line " + queryEntry.getEntry() + " as worker was interrupted", true);
+                entryFinished(queryEntry, false);
+            } catch (RuntimeException ex) {
+                log(Level.SEVERE, "Skipping " + queryEntry.getFileName() + " from line " + queryEntry.getEntry() + " due to exception: " + ex + " " + ex.getMessage(), true);
+                entryFinished(queryEntry, false);
+            } finally {
+                if (dao != null) {
+                    daoPool.add(dao);
+                }
+            }
         }
+    }
 
-        PrintStream out = new PrintStream(OUTPUT_DIR + fileName + ".1.dsv");
-        if (!NO_HEADER) {
-            out.print(columnHeaders);
-        } else {
-            newFile = true;
+    /*
+     * Runs a single query file entry (or partition of one) and writes its results to disk,
+     * reconnecting and carrying on from the last complete chunk when the connection fails
+     */
+    private void processEntry(Relational_QueryEntry queryEntry, DAO dao) throws InterruptedException {
+        String fileName = queryEntry.getFileName();
+
+        // FINISHED BY AN EARLIER RUN
+        if (checkpoint != null && checkpoint.isDone(fileName)) {
+            log(Level.INFO, "Skipping " + fileName + " as it was completed by an earlier run", true);
+            entryFinished(queryEntry, true);
+            return;
         }
-        // INIT VARIABLES
-        long rowsProcessed = 0;
-        long chunkCount = 1;
-
-        String dataToWrite = "", columnType, row;
-        Object dataObj;
-        long clobLength = 0;
-        String clobStr = "";
-        Blob blob = null;
-        DateFormat outputDateFormat = new SimpleDateFormat(DATE_FORMAT);
-        java.sql.Date formattedDate;
-
-        // LOOP THROUGH QUERY RESULTS, WRITING ROWS TO DISK
-        while (rs.next()) {
-
-            // CREATE NEW OUTPUT FILE EVERYTIME CHUNK SIZE IS REACHED
-            if (rowsProcessed > 0 && rowsProcessed % chunkSize == 0) {
-
-                // TIME ESTIMATE
-                if (rowCount != 0) {
-                    System.out.println("Current estimated completion time: " + getEstimatedCompleteDate(queryStartTime, rowsProcessed, rowCount));
-                } else {
-                    System.out.println("Estimated completion time unavailable for this query");
-                }
-                // WRITE OUT REMAINING ROWS AND CLOSE CHUNK FILE
-                out.print(dataToWrite);
-                dataToWrite = "";
-                try {
-                    out.close();
-                } catch (Exception ex) {
-                }
+        Relational_EntryProgress progress = (checkpoint != null) ? checkpoint.getProgress(fileName, queryEntry.getResumeKey())
+                : new Relational_EntryProgress(null, fileName, queryEntry.getResumeKey(), 0, 0, null);
 
-                log(Level.INFO, "Chunk file " + fileName + "." + chunkCount + " complete.", false);
-                chunkCount++;
+        // THE WATERMARK CAN ONLY MOVE ONCE THE CHUNKS ARE ON DISK, AND OUTPUT_SYNC ASKS FOR THEM ON DISK TOO
+        progress.setDurable(queryEntry.getWatermark() != null || syncBytes != OutputSink.SYNC_NEVER);
 
-                out = new PrintStream(OUTPUT_DIR + fileName + "." + chunkCount + ".dsv");
-                if (!NO_HEADER) {
-                    out.print(columnHeaders);
-                } else {
-                    newFile = true;
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (attempt > 0) {
+                    reconnect(dao);
+                }
+                runEntry(queryEntry, dao.getConnection(), progress);
+                if (checkpoint != null) {
+                    checkpoint.recordDone(fileName);
                 }
-                // LOG PERCENT COMPLETE AND EST TIME LEFT
-                if (rowCount != 0) {
-                    System.out.println("Current estimated completion time: " + getEstimatedCompleteDate(queryStartTime, rowsProcessed, rowCount));
+                entryFinished(queryEntry, true);
+                return;
+            } catch (SQLException ex) {
+                if (attempt < RETRIES && isTransient(ex)) {
+                    log(Level.WARNING, "Query for " + fileName + " failed with " + ex.getMessage() + " - reconnecting in " + (RETRY_SECONDS * (attempt + 1)) + " seconds (retry " + (attempt + 1) + "/" + RETRIES + ")", true);
+                    Thread.sleep(RETRY_SECONDS * 1000L * (attempt + 1));
+                    continue;
                 }
+                log(Level.SEVERE, "Skipping " + fileName + " from line " + queryEntry.getEntry() + " in " + QUERY_FILE_LOC + " due to exception: " + ex.getMessage() + "", true);
+            } catch (IOException ex) {
+                log(Level.SEVERE, "Skipping " + fileName + " from line " + queryEntry.getEntry() + " in " + QUERY_FILE_LOC + " due to exception: " + ex.getMessage() + "", true);
             }
-            row = "";
-
-            // LOOP THROUGH COLUMNS IN ROW
-            for (int i = 1; i <= colCount; i++) {
-
-                dataObj = rs.getObject(i);
-
-                if (DB_TYPE.equals("MSSQL")) {
-                    if (dataObj != null && !dataObj.equals("null") && !dataObj.equals("")) {
-                        columnType = rsmd.getColumnTypeName(i);
-                        //  System.out.println("Data Types" + columnType);
-                        if (columnType.toUpperCase().contains("CHAR")) {
-                            dataObj = cleanData(dataObj.toString(), DELIMITER);
-                            row += "\"" + dataObj + "\"";
-                        } else if (columnType.toUpperCase().contains("TEXT")) {
-                            dataObj = cleanDataText(dataObj.toString(), DELIMITER);
-                            row += "\"" + dataObj + "\"";
-                        } else if (columnType.toUpperCase().equals("DATETIME")) {
-                            formattedDate = new java.sql.Date(rs.getTimestamp(i).getTime());
-                            row += outputDateFormat.format(formattedDate);
-                        } else {
-                            row += dataObj;
-                        }
-                    }
+            entryFinished(queryEntry, false);
+            return;
+        }
+    }
+
+    /*
+     * Counts the entries that failed and moves the watermark once every part of its run is complete
+     */
+    private void entryFinished(Relational_QueryEntry queryEntry, boolean complete) {
+        if (!complete) {
+            failedEntries.incrementAndGet();
+        }
+        if (queryEntry.getWatermark() != null) {
+            queryEntry.getWatermark().partDone(complete);
+        }
+    }
+
+    /*
+     * Works out the rows of the next run of an entry with a WATERMARK column on a connection borrowed from the pool
+     */
+    private Relational_Watermark startWatermark(Relational_QueryEntry queryEntry) throws SQLException, IOException, InterruptedException {
+        DAO dao = (daoPool == null) ? myDao : daoPool.take();
+        try {
+            return queryEntry.startWatermark(dao.getConnection(), watermarks, DB_TYPE);
+        } finally {
+            if (daoPool != null) {
+                daoPool.add(dao);
+            }
+        }
+    }
 
-                } else if (DB_TYPE.equals("ORACLE")) {
-                    if (dataObj != null && !dataObj.equals("null") && !dataObj.equals("")) {
-                        columnType = rsmd.getColumnTypeName(i);
+    /*
+     * Runs the query of an entry once, picking up after the chunks it already has
+     */
+    private void runEntry(Relational_QueryEntry queryEntry, Connection conn, Relational_EntryProgress progress) throws SQLException, IOException, InterruptedException {
+        String fileName = queryEntry.getFileName();
+        long rowCount;
+        PreparedStatement pstmt;
+
+        // CARRY ON AFTER THE LAST KEY WRITTEN, OR START OVER WHEN THE ENTRY HAS NO KEY
+        queryEntry.setResumeAfter(null);
+        if (progress.getChunksDone() > 0) {
+            if (progress.canResume()) {
+                queryEntry.setResumeAfter(progress.getLastKey());
+                log(Level.INFO, "Resuming " + fileName + " after chunk " + progress.getChunksDone() + " (" + queryEntry.getResumeKey() + " > " + progress.getLastKey() + ")", true);
+            } else {
+                log(Level.WARNING, "Starting " + fileName + " over from the first chunk - add KEY=column to its entry to resume part way through", true);
+                progress.restart();
+            }
+        }
 
-                        if (columnType.toUpperCase().contains("CHAR")) {
-                            dataObj = cleanData(dataObj.toString(), DELIMITER);
-                            row += "\"" + dataObj + "\"";
+        // CHUNKS OF AN EARLIER RUN PAST THE ONES KEPT WOULD OTHERWISE BE LOADED WITH THE NEW ONES
+        List<String> staleChunks = Relational_ChunkPolicy.removeChunksAfter(OUTPUT_DIR, fileName, progress.getChunksDone());
+        if (!staleChunks.isEmpty()) {
+            log(Level.WARNING, "Removed " + staleChunks.size() + " chunk files of " + fileName + " past chunk " + progress.getChunksDone() + " left by an earlier run: " + staleChunks, true);
+        }
 
-                        } else if (columnType.toUpperCase().equals("TIMESTAMP") || columnType.equals("DATE")) {
-                            formattedDate = new java.sql.Date(rs.getTimestamp(i).getTime());
-                            row += outputDateFormat.format(formattedDate);
+        // GET ROW COUNT FROM TABLE
+        rowCount = queryEntry.getRowCount();
+        if (rowCount < 0) {
+            rowCount = getRowCount(conn, queryEntry);
+        }
 
-                        } else if (columnType.toUpperCase().equals("CLOB")) {
-                            java.sql.Clob myClob = rs.getClob(rsmd.getColumnLabel(i));
-                            clobLength = myClob.length();
-                            clobStr = myClob.getSubString(1, (int) clobLength);
-                            clobStr = cleanData(clobStr, DELIMITER);
-                            row += "\"" + clobStr + "\"";
+        // EXECUTE QUERY
+        pstmt = queryEntry.prepareStatement(conn, DB_TYPE);
+        pstmt.setFetchSize(FETCH_SIZE);
 
-                        } else if (columnType.toUpperCase().equals("BLOB")) {
-                            blob = rs.getBlob(rsmd.getColumnLabel(i));
-                            row += "\"" + Arrays.toString(blob.getBytes(1, (int) blob.length())) + "\"";
-                        } else {
-                            row += dataObj;
-                        }
-                    }
-                }
+        log(Level.INFO, "Running query for " + fileName + ": " + queryEntry.getQuery(), true);
+        if (!queryEntry.getRangeDescription().equals("")) {
+            log(Level.INFO, "Key range for " + fileName + " is: " + queryEntry.getRangeDescription(), false);
+        }
+        if (rowCount != 0) {
+            log(Level.INFO, "Row count for " + fileName + " is: " + rowCount, false);
+        }
 
-                // APPEND PIPE AFTER EACH COLUMN EXCEPT AT END OF ROW
-                if (i < colCount) {
-                    row += DELIMITER;
-                }
+        // WRITE OUT DATA TO DISK
+        try {
+            this.outputToFile(pstmt, fileName, queryEntry.getBaseFileName(), rowCount, CHUNK_SIZE, progress);
+        } finally {
+            try {
+                pstmt.close();
+            } catch (SQLException ex) {
+            }
+        }
+    }
+
+    /*
+     * True for the failures a new connection may get past - network errors, failovers and timeouts
+     */
+    private static boolean isTransient(SQLException ex) {
+        String state = ex.getSQLState();
+        return ex instanceof SQLTransientException || ex instanceof SQLRecoverableException
+                || (state != null && state.startsWith("08"));
+    }
 
+    /*
+     * Replaces the connection of a DAO after it failed
+     */
+    private void reconnect(DAO dao) throws SQLException {
+        dao.closeConnection();
+        try {
+            connect(dao);
+        } catch (IOException ex) {
+            throw new SQLRecoverableException("Unable to reconnect to " + DB_TYPE + " database: " + ex.getMessage(), "08001", ex);
+        }
+        if (dao.getConnection() == null) {
+            throw new SQLRecoverableException("Unable to reconnect to " + DB_TYPE + " database", "08001");
+        }
+        log(Level.INFO, "Reconnected to " + DB_TYPE + " database", true);
+    }
+
+    /*
+     * Opens a new connection to the configured database
+     */
+    private DAO openDAO() throws SQLException, IOException {
+        DAO dao = DAOFactory.getInstance().getDAO(DB_TYPE);
+        connect(dao);
+        openDaos.add(dao);
+        return dao;
+    }
+
+    /*
+     * Opens the connection of a DAO with the connection settings
+     */
+    private void connect(DAO dao) throws IOException {
+        if (DB_TYPE.equals("ORACLE")) {
+            String formattedJDBCStr = formatJDBCString(SID, SERVICE_NAME, HOST, PORT);
+            dao.openConnection(formattedJDBCStr, USERNAME, PASSWORD);
+        } else if (DB_TYPE.equals("MSSQL")) {
+            // Determines if Windows Authentication or Server Authentication will be used to connect
+            if (MSSQL_WINDOWS_AUTH) {
+                String url = "jdbc:sqlserver://";
+                String selectMethod = "cursor";
+                String connStr = url + HOST + ":" + PORT + ";integratedSecurity=" + MSSQL_WINDOWS_AUTH + ";databaseName=" + MSSQL_DATABASE_NAME + ";selectMethod=" + selectMethod + ";";
+                dao.openConnection(connStr);
+            } else {
+                String connStr = "jdbc:sqlserver://" + HOST + ";integratedSecurity=false;port=" + PORT;
+                dao.openConnection(connStr, USERNAME, PASSWORD);
             }
+        }
+    }
 
-            // SUPPORT NO HEADERS  
-            try {
-                if (NO_HEADER) {
-                    if (newFile) {
-                        dataToWrite += row;
-                        // will reset newFile to false - used to exclude "\r\n"
-                        newFile = false;
-                    } else {
-                        dataToWrite += "\r\n" + row;
-                    }
-                } else {
-                    // normal pipe-delmited processing with Header
-                    dataToWrite += "\r\n" + row;
-                }
-            } catch (Exception ex) {
-                System.out.println(ex.toString());
-                log(Level.INFO, "Error " + ex.toString(), false);
+    private void closeConnections() {
+        synchronized (openDaos) {
+            for (DAO dao : openDaos) {
+                dao.closeConnection();
             }
+        }
+    }
+
+    /*
+     * Outputs a a resultset of data (Table) to file of given filename
+     */
 
-            if (rowsProcessed % OUTPUT_SIZE == 0) {
-                out.print(dataToWrite);
-                dataToWrite = "";
+    private void outputToFile(PreparedStatement pstmt, String fileName, String baseFileName, long rowCount, int chunkSize, Relational_EntryProgress progress) throws IOException, SQLException, InterruptedException {
+
+        long queryStartTime = new Date().getTime();
+        ResultSet rs = pstmt.executeQuery();
+
+        // GET COL HEADERS
+        ResultSetMetaData rsmd = rs.getMetaData();
+        String columnHeaders = getColumnHeadersStr(rsmd, DELIMITER);
+        progress.bind(rsmd);
+
+        // RESOLVE HOW EACH COLUMN IS ENCODED ONCE FOR THE WHOLE QUERY
+        Relational_ColumnPlan plan = new Relational_ColumnPlan(rsmd, DB_TYPE, baseFileName, COLUMN_CODECS);
+        log(Level.INFO, "Column plan for " + fileName + ":" + plan.describe(), false);
+
+        // A NEW CHUNK FILE AT WHICHEVER LIMIT IS HIT FIRST
+        Relational_ChunkPolicy policy = new Relational_ChunkPolicy(chunkSize, CHUNK_MB * 1024L * 1024L, CHUNK_SECONDS * 1000L);
+
+        if (OUTPUT_FORMAT.equalsIgnoreCase("PARQUET")) {
+            outputToParquet(rs, rsmd, plan, fileName, rowCount, policy, queryStartTime, progress);
+            return;
+        } else if (OUTPUT_FORMAT.equalsIgnoreCase("ARROW")) {
+            outputToArrow(rs, rsmd, plan, fileName, rowCount, policy, queryStartTime, progress);
+            return;
+        }
+        Relational_RowEncoder encoder = new Relational_RowEncoder(rs, plan, DELIMITER, DATE_FORMAT, LITERAL_DELIMITER, blobStore, progress.isDurable());
+
+        // CHUNK ROLLOVER AND HEADERS ARE HANDLED BY THE WRITER STAGE
+        Relational_ChunkWriter writer = new Relational_ChunkWriter(OUTPUT_DIR, fileName, columnHeaders, NO_HEADER, policy, rowCount, queryStartTime, compression, syncBytes, progress);
+        Relational_RowPipeline pipeline = new Relational_RowPipeline(writer, PIPELINE_DEPTH, OUTPUT_SIZE, writerExecutor);
+
+        try {
+            // LOOP THROUGH QUERY RESULTS, HANDING BATCHES OF ROWS TO THE WRITER
+            while (rs.next()) {
+                encoder.encodeRow(pipeline);
+                pipeline.endRow(progress.readKey(rs));
             }
 
-            rowsProcessed++;
+            // WRITE ANY REMAINING OUTPUT
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+
+        // LOG TOTAL TIME TAKEN
+        long queryEndTime = new Date().getTime();
+        long timeTaken = calcTimeTakenInMs(queryEndTime, queryStartTime);
+        String detail = ExtractHelper.convertMilisecondsToDetail(timeTaken);
+        log(Level.INFO, "Data Export for " + fileName + " Completed in " + detail + " ", true);
+
+        try {
+            rs.close();
+        } catch (Exception ex) {
         }
+    }
 
-        // WRITE ANY REMAINING OUTPUT
-        if (!dataToWrite.trim().equals("")) {
-            out.print(dataToWrite);
-            log(Level.INFO, "Chunk file " + fileName + "." + chunkCount + " complete (final partial file).", false);
+    /*
+     * Outputs a resultset of data (Table) to Parquet files of given filename
+     */
+    private void outputToParquet(ResultSet rs, ResultSetMetaData rsmd, Relational_ColumnPlan plan, String fileName, long rowCount, Relational_ChunkPolicy policy, long queryStartTime, Relational_EntryProgress progress) throws IOException, SQLException {
+        Relational_ParquetWriteSupport writeSupport = new Relational_ParquetWriteSupport(rsmd, plan, DB_TYPE, blobStore, progress.isDurable());
+        log(Level.INFO, "Parquet schema for " + fileName + ": " + writeSupport.getSchema(), false);
+
+        Relational_ParquetWriter writer = new Relational_ParquetWriter(OUTPUT_DIR, fileName, writeSupport, policy, rowCount, queryStartTime, PARQUET_ROW_GROUP_SIZE, PARQUET_COMPRESSION, progress);
+        boolean complete = false;
+        try {
+            // LOOP THROUGH QUERY RESULTS, WRITING ROWS TO DISK
+            while (rs.next()) {
+                writer.write(rs);
+            }
+            complete = true;
+        } finally {
+            if (complete) {
+                writer.close();
+            } else {
+                writer.abort();
+            }
         }
+
+        // LOG TOTAL TIME TAKEN
+        long queryEndTime = new Date().getTime();
+        long timeTaken = calcTimeTakenInMs(queryEndTime, queryStartTime);
+        String detail = ExtractHelper.convertMilisecondsToDetail(timeTaken);
+        log(Level.INFO, "Data Export for " + fileName + " Completed in " + detail + " ", true);
+
         try {
-            out.close();
+            rs.close();
         } catch (Exception ex) {
+        }
+    }
 
+    /*
+     * Outputs a resultset of data (Table) to Arrow IPC files of given filename, one record batch per fetch
+     */
+    private void outputToArrow(ResultSet rs, ResultSetMetaData rsmd, Relational_ColumnPlan plan, String fileName, long rowCount, Relational_ChunkPolicy policy, long queryStartTime, Relational_EntryProgress progress) throws IOException, SQLException {
+        Relational_ArrowWriter writer = new Relational_ArrowWriter(OUTPUT_DIR, fileName, rsmd, plan, DB_TYPE, blobStore, policy, FETCH_SIZE, rowCount, queryStartTime, progress);
+        log(Level.INFO, "Arrow schema for " + fileName + ": " + writer.getSchema(), false);
+        boolean complete = false;
+        try {
+            // LOOP THROUGH QUERY RESULTS, FILLING THE COLUMN VECTORS
+            while (rs.next()) {
+                writer.write(rs);
+            }
+            complete = true;
+        } finally {
+            if (complete) {
+                writer.close();
+            } else {
+                writer.abort();
+            }
         }
-        log(Level.INFO, rowsProcessed + " rows written to disk", false);
 
         // LOG TOTAL TIME TAKEN
         long queryEndTime = new Date().getTime();
         long timeTaken = calcTimeTakenInMs(queryEndTime, queryStartTime);
         String detail = ExtractHelper.convertMilisecondsToDetail(timeTaken);
-        log(Level.INFO, "Data Export Completed in " + detail + " ", true);
+        log(Level.INFO, "Data Export for " + fileName + " Completed in " + detail + " ", true);
 
         try {
             rs.close();
@@ -430,7 +758,7 @@ public class Relational_DataExtraction extends DataExtraction {
     @Override
     public void exitImmediately(String MSG) throws InterruptedException {
         try {
-            myDao.closeConnection();
+            closeConnections();
         } catch (Exception ex) {
         }
         ExtractHelper.log(Level.SEVERE, MSG, false);
@@ -451,12 +779,33 @@ public class Relational_DataExtraction extends DataExtraction {
         FETCH_SIZE = Integer.parseInt(props.getProperty("ORACLE_FETCH_SIZE"));
         OUTPUT_SIZE = Integer.parseInt(props.getProperty("ORACLE_OUTPUT_SIZE"));
         CHUNK_SIZE = Integer.parseInt(props.getProperty("ORACLE_CHUNK_SIZE"));
+        CHUNK_MB = Integer.parseInt(props.getProperty("ORACLE_CHUNK_MB", "0"));
+        CHUNK_SECONDS = Integer.parseInt(props.getProperty("ORACLE_CHUNK_SECONDS", "0"));
+        THREADS = Integer.parseInt(props.getProperty("ORACLE_THREADS", "1"));
+        PIPELINE_DEPTH = Integer.parseInt(props.getProperty("ORACLE_PIPELINE_DEPTH", "0"));
         QUERY_FILE_LOC = props.getProperty("ORACLE_QUERY_FILE_PATH");
         LOGS_DIR = props.getProperty("ORACLE_LOGS_DIR", "");
         OUTPUT_DIR = props.getProperty("ORACLE_OUTPUT_DIR", "");
         DELIMITER = props.getProperty("DELIMITER", "|");
+        // OFF BY DEFAULT - THE DELIMITER IS THEN MATCHED AS A REGEX IN CELL DATA, AS IT ALWAYS HAS BEEN
+        LITERAL_DELIMITER = Boolean.parseBoolean(props.getProperty("LITERAL_DELIMITER"));
         NO_HEADER = Boolean.parseBoolean(props.getProperty("ORACLE_NO_HEADER")); // Javier 2/11/2016 
         DATE_FORMAT = props.getProperty("ORACLE_DATE_FORMAT", "YYYY-MM-dd'T'HH:mm:ss");
+        COLUMN_CODECS = Relational_ColumnPlan.parseOverrides(props.getProperty("ORACLE_COLUMN_CODECS"));
+        BLOB_MODE = props.getProperty("ORACLE_BLOB_MODE", "INLINE").trim();
+        BLOB_DIR = props.getProperty("ORACLE_BLOB_DIR", OUTPUT_DIR + "blobs");
+        COMPRESSION = props.getProperty("ORACLE_COMPRESSION", "NONE").trim();
+        COMPRESSION_LEVEL = Integer.parseInt(props.getProperty("ORACLE_COMPRESSION_LEVEL", "-1"));
+        COMPRESSION_THREADS = Integer.parseInt(props.getProperty("ORACLE_COMPRESSION_THREADS", "" + COMPRESSION_THREADS));
+        OUTPUT_FORMAT = props.getProperty("ORACLE_OUTPUT_FORMAT", "DSV").trim();
+        PARQUET_ROW_GROUP_SIZE = Integer.parseInt(props.getProperty("ORACLE_PARQUET_ROW_GROUP_SIZE", "" + PARQUET_ROW_GROUP_SIZE));
+        PARQUET_COMPRESSION = props.getProperty("ORACLE_PARQUET_COMPRESSION", PARQUET_COMPRESSION);
+        OUTPUT_SYNC = props.getProperty("ORACLE_OUTPUT_SYNC", "NONE").trim();
+        CHECKPOINT_FILE = props.getProperty("ORACLE_CHECKPOINT_FILE", "").trim();
+        RETRIES = Integer.parseInt(props.getProperty("ORACLE_RETRIES", "3"));
+        RETRY_SECONDS = Integer.parseInt(props.getProperty("ORACLE_RETRY_SECONDS", "30"));
+        // KEPT OUT OF OUTPUT_DIR SO LOADERS WATCHING THE CHUNK FILES NEVER PICK UP THE FILE OR ITS .tmp COPY
+        WATERMARK_FILE = props.getProperty("ORACLE_WATERMARK_FILE", LOGS_DIR + "watermarks.properties").trim();
     }
 
     /*
@@ -472,12 +821,31 @@ public class Relational_DataExtraction extends DataExtraction {
         FETCH_SIZE = Integer.parseInt(props.getProperty("MSSQL_FETCH_SIZE"));
         OUTPUT_SIZE = Integer.parseInt(props.getProperty("MSSQL_OUTPUT_SIZE"));
         CHUNK_SIZE = Integer.parseInt(props.getProperty("MSSQL_CHUNK_SIZE"));
+        CHUNK_MB = Integer.parseInt(props.getProperty("MSSQL_CHUNK_MB", "0"));
+        CHUNK_SECONDS = Integer.parseInt(props.getProperty("MSSQL_CHUNK_SECONDS", "0"));
+        THREADS = Integer.parseInt(props.getProperty("MSSQL_THREADS", "1"));
+        PIPELINE_DEPTH = Integer.parseInt(props.getProperty("MSSQL_PIPELINE_DEPTH", "0"));
         QUERY_FILE_LOC = props.getProperty("MSSQL_QUERY_FILE_PATH");
         LOGS_DIR = props.getProperty("MSSQL_LOGS_DIR", "");
         OUTPUT_DIR = props.getProperty("MSSQL_OUTPUT_DIR", "");
         DELIMITER = props.getProperty("DELIMITER", "|");
+        LITERAL_DELIMITER = Boolean.parseBoolean(props.getProperty("LITERAL_DELIMITER"));
         NO_HEADER = Boolean.parseBoolean(props.getProperty("MSSQL_NO_HEADER"));
         DATE_FORMAT = props.getProperty("MSSQL_DATE_FORMAT", "YYYY-MM-dd'T'HH:mm:ss");
+        COLUMN_CODECS = Relational_ColumnPlan.parseOverrides(props.getProperty("MSSQL_COLUMN_CODECS"));
+        BLOB_MODE = props.getProperty("MSSQL_BLOB_MODE", "INLINE").trim();
+        BLOB_DIR = props.getProperty("MSSQL_BLOB_DIR", OUTPUT_DIR + "blobs");
+        COMPRESSION = props.getProperty("MSSQL_COMPRESSION", "NONE").trim();
+        COMPRESSION_LEVEL = Integer.parseInt(props.getProperty("MSSQL_COMPRESSION_LEVEL", "-1"));
+        COMPRESSION_THREADS = Integer.parseInt(props.getProperty("MSSQL_COMPRESSION_THREADS", "" + COMPRESSION_THREADS));
+        OUTPUT_FORMAT = props.getProperty("MSSQL_OUTPUT_FORMAT", "DSV").trim();
+        PARQUET_ROW_GROUP_SIZE = Integer.parseInt(props.getProperty("MSSQL_PARQUET_ROW_GROUP_SIZE", "" + PARQUET_ROW_GROUP_SIZE));
+        PARQUET_COMPRESSION = props.getProperty("MSSQL_PARQUET_COMPRESSION", PARQUET_COMPRESSION);
+        OUTPUT_SYNC = props.getProperty("MSSQL_OUTPUT_SYNC", "NONE").trim();
+        CHECKPOINT_FILE = props.getProperty("MSSQL_CHECKPOINT_FILE", "").trim();
+        RETRIES = Integer.parseInt(props.getProperty("MSSQL_RETRIES", "3"));
+        RETRY_SECONDS = Integer.parseInt(props.getProperty("MSSQL_RETRY_SECONDS", "30"));
+        WATERMARK_FILE = props.getProperty("MSSQL_WATERMARK_FILE", LOGS_DIR + "watermarks.properties").trim();
         MSSQL_WINDOWS_AUTH = Boolean.parseBoolean(props.getProperty("MSSQL_WINDOWS_AUTH"));
         MSSQL_DATABASE_NAME = props.getProperty("MSSQL_DATABASE_NAME");
     }
@@ -510,20 +878,20 @@ public class Relational_DataExtraction extends DataExtraction {
         this.started = started;
     }
 
-    // get count given a query
-    private long getRowCount(String countQuery) {
+    // get count given the count query of an entry
+    private long getRowCount(Connection conn, Relational_QueryEntry queryEntry) {
         long count = 0;
-        if (countQuery != null && !countQuery.trim().equals("")) {
-            try {
-                Statement st = myDao.getConnection().createStatement();
-                ResultSet rs = st.executeQuery(countQuery);
+        try {
+            PreparedStatement st = queryEntry.prepareCountStatement(conn, DB_TYPE);
+            if (st != null) {
+                ResultSet rs = st.executeQuery();
                 if (rs.next()) {
                     count = rs.getInt(1);
                 }
                 st.close();
                 rs.close();
-            } catch (Exception ex) {
             }
+        } catch (Exception ex) {
         }
 
         return count;
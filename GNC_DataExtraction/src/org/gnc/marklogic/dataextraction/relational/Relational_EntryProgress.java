@@ -0,0 +1,212 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * How far a query file entry (or partition of one) has got - the chunk files complete,
+ * the rows in them and, for entries with a KEY column, the key of the last row written.
+ *
+ * The chunk writers report every chunk file once it has its final name, so after a
+ * failure the entry can carry on after the last complete chunk - with a key column the
+ * query picks up from the next key, without one it starts over from the first chunk.
+ * Rows come in key order, so a key that repeats the one before it shows the key column is
+ * not unique - carrying on after a key could then miss rows sharing it, so from there on
+ * the chunks are reported without a key and the entry starts over instead.
+ * When a checkpoint journal is in use every chunk is also recorded there, so a later
+ * run can do the same. Chunks recorded in a checkpoint, or that a watermark depends on,
+ * are forced to disk as they are completed.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_EntryProgress {
+
+    private final Relational_Checkpoint checkpoint;
+    private final String fileName;
+    private final String keyName;
+    private boolean durable = false;
+
+    private long chunksDone;
+    private long rowsDone;
+    private Object lastKey;
+
+    // resolved from the result set of each run of the query
+    private int keyColumn = 0;
+    private int keyType = Types.NULL;
+    private Object previousKey = null;
+
+    // cleared for good once two rows turn up with the same key
+    private volatile boolean uniqueKey = true;
+
+    Relational_EntryProgress(Relational_Checkpoint checkpoint, String fileName, String keyName, long chunksDone, long rowsDone, Object lastKey) {
+        this.checkpoint = checkpoint;
+        this.fileName = fileName;
+        this.keyName = keyName;
+        this.chunksDone = chunksDone;
+        this.rowsDone = rowsDone;
+        this.lastKey = lastKey;
+    }
+
+    /*
+     * Finds the key column in the results of the query
+     */
+    public void bind(ResultSetMetaData rsmd) throws SQLException {
+        keyColumn = 0;
+        previousKey = null;
+        if (keyName == null) {
+            return;
+        }
+        for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+            if (rsmd.getColumnLabel(i).equalsIgnoreCase(keyName)) {
+                keyColumn = i;
+                break;
+            }
+        }
+        if (keyColumn == 0) {
+            throw new SQLException("Key column " + keyName + " is not in the results of the query for " + fileName);
+        }
+
+        // INTEGER TYPES ARE KEPT AS LONGS, NUMBER / DECIMAL (WHICH CAN BE WIDER THAN A LONG) AND OTHER NUMBERS AS DECIMALS
+        int sqlType = rsmd.getColumnType(keyColumn);
+        if (sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER || sqlType == Types.BIGINT) {
+            keyType = Types.BIGINT;
+        } else if (sqlType == Types.NUMERIC || sqlType == Types.DECIMAL || sqlType == Types.FLOAT || sqlType == Types.REAL || sqlType == Types.DOUBLE) {
+            keyType = Types.DECIMAL;
+        } else if (sqlType == Types.DATE || sqlType == Types.TIMESTAMP) {
+            keyType = Types.TIMESTAMP;
+        } else {
+            keyType = Types.VARCHAR;
+        }
+    }
+
+    /**
+     * @return the key of the row the result set is on, null when the entry has no key column
+     */
+    public Object readKey(ResultSet rs) throws SQLException {
+        Object key;
+        switch (keyColumn == 0 ? Types.NULL : keyType) {
+            case Types.NULL:
+                return null;
+            case Types.BIGINT: {
+                long value = rs.getLong(keyColumn);
+                key = rs.wasNull() ? null : (Object) value;
+                break;
+            }
+            case Types.DECIMAL:
+                key = rs.getBigDecimal(keyColumn);
+                break;
+            case Types.TIMESTAMP:
+                key = rs.getTimestamp(keyColumn);
+                break;
+            default:
+                key = rs.getString(keyColumn);
+        }
+
+        // ROWS COME IN KEY ORDER, SO A REPEATED KEY IS THE ONE JUST BEFORE IT
+        if (uniqueKey && key != null && isSameKey(key, previousKey)) {
+            uniqueKey = false;
+            log(Level.WARNING, "Key column " + keyName + " is not unique for " + fileName + " (" + key + " is repeated) - it will start over from the first chunk if it fails", true);
+        }
+        previousKey = key;
+        return key;
+    }
+
+    private static boolean isSameKey(Object key, Object previous) {
+        if (key instanceof BigDecimal && previous instanceof BigDecimal) {
+            return ((BigDecimal) key).compareTo((BigDecimal) previous) == 0;
+        }
+        return key.equals(previous);
+    }
+
+    /*
+     * Called by the chunk writers once a chunk file has its final name - the key of a column that is not unique is left out
+     */
+    public void chunkDone(long chunk, long rowsWritten, Object key) throws IOException {
+        if (!uniqueKey) {
+            key = null;
+        }
+        chunksDone = chunk;
+        rowsDone = rowsWritten;
+        lastKey = key;
+        if (checkpoint != null) {
+            checkpoint.recordChunk(fileName, chunk, rowsWritten, key);
+        }
+    }
+
+    /*
+     * Goes back to the first chunk when the entry cannot be picked up part way through
+     */
+    public void restart() {
+        chunksDone = 0;
+        rowsDone = 0;
+        lastKey = null;
+    }
+
+    /**
+     * @return true when the chunk files have to be on disk before they are reported
+     */
+    public boolean isDurable() {
+        return durable || checkpoint != null;
+    }
+
+    /**
+     * @param durable true to force the chunk files to disk as they are completed
+     */
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * @return true when the query can carry on from the key of the last row written
+     */
+    public boolean canResume() {
+        return keyName != null && lastKey != null;
+    }
+
+    /**
+     * @return the number of chunk files complete
+     */
+    public long getChunksDone() {
+        return chunksDone;
+    }
+
+    /**
+     * @return the number of rows in the complete chunk files
+     */
+    public long getRowsDone() {
+        return rowsDone;
+    }
+
+    /**
+     * @return the key of the last row in the complete chunk files
+     */
+    public Object getLastKey() {
+        return lastKey;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.sql.Date;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The native types columns are written as in the Parquet and Arrow output.
+ *
+ * Unlike the column plan of the DSV output, where a column without formatting of its own
+ * is an OBJECT written as the driver returns it, the type comes straight from the
+ * ResultSetMetaData so every whole number, floating point, date, time and timestamp
+ * column keeps its type. Columns with no native type (NUMBER without a precision, XML,
+ * ROWID, ...) are written as strings.
+ *
+ * Timestamps without a time zone are read with a UTC calendar, so the value written is
+ * the wall clock time held in the database whatever the time zone of the host running
+ * the extraction. Timestamps with a time zone are written as the instant they stand for.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public enum Relational_NativeType {
+
+    INT32,
+    INT64,
+    FLOAT,
+    DOUBLE,
+    DECIMAL,
+    BOOLEAN,
+    DATE,
+    TIME,
+    TIMESTAMP,
+    TIMESTAMP_UTC,
+    STRING,
+    BYTES,
+    BLOB_REFERENCE;
+
+    // driver type codes that are not in java.sql.Types
+    private static final int ORACLE_BINARY_FLOAT = 100;
+    private static final int ORACLE_BINARY_DOUBLE = 101;
+    private static final int ORACLE_TIMESTAMPTZ = -101;
+    private static final int ORACLE_TIMESTAMPLTZ = -102;
+    private static final int MSSQL_DATETIMEOFFSET = -155;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final long MICROS_PER_DAY = MILLIS_PER_DAY * 1000;
+
+    /*
+     * Picks the native type of column i - BLOB columns the plan sends to the BLOB store are written as their reference
+     */
+    public static Relational_NativeType resolve(ResultSetMetaData rsmd, int i, String DB_TYPE, Relational_ColumnPlan plan, boolean blobStore) throws SQLException {
+        int precision = rsmd.getPrecision(i);
+        int scale = rsmd.getScale(i);
+        switch (rsmd.getColumnType(i)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT32;
+            case Types.BIGINT:
+                return INT64;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                // A NUMBER WITHOUT A PRECISION (0, SCALE -127 ON ORACLE) CAN HOLD ANY VALUE
+                if (precision <= 0 || precision > 38 || scale < 0 || scale > precision) {
+                    return STRING;
+                }
+                return (scale == 0 && precision <= 18) ? INT64 : DECIMAL;
+            case Types.REAL:
+            case ORACLE_BINARY_FLOAT:
+                return FLOAT;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case ORACLE_BINARY_DOUBLE:
+                return DOUBLE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.DATE:
+                // AN ORACLE DATE HAS A TIME OF DAY
+                return DB_TYPE.equals("ORACLE") ? TIMESTAMP : DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+            case ORACLE_TIMESTAMPTZ:
+            case ORACLE_TIMESTAMPLTZ:
+            case MSSQL_DATETIMEOFFSET:
+                return TIMESTAMP_UTC;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return (blobStore && plan.getCodec(i) == Relational_ColumnCodec.BLOB) ? BLOB_REFERENCE : BYTES;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * @return a calendar to read wall clock dates and times with - calendars are not thread safe, so one per writer
+     */
+    public static Calendar newUtcCalendar() {
+        return Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @return the microseconds since 1970-01-01 of a timestamp - whole seconds from getTime() plus the microseconds of the nanos
+     */
+    public static long toMicros(Timestamp ts) {
+        return Math.floorDiv(ts.getTime(), 1000L) * 1000000L + ts.getNanos() / 1000;
+    }
+
+    /**
+     * @return the microseconds since midnight of a time read as a timestamp
+     */
+    public static long toMicrosOfDay(Timestamp ts) {
+        return Math.floorMod(toMicros(ts), MICROS_PER_DAY);
+    }
+
+    /**
+     * @return the days since 1970-01-01 of a date read with a UTC calendar
+     */
+    public static int toDays(Date date) {
+        return (int) Math.floorDiv(date.getTime(), MILLIS_PER_DAY);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Blob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.OriginalType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+
+/**
+ * Writes the current row of a result set as a Parquet record.
+ *
+ * The Parquet schema comes from the native types of the columns (see
+ * Relational_NativeType) - whole numbers become INT32/INT64, floating point columns
+ * FLOAT/DOUBLE, dates DATE, times TIME_MICROS, timestamps INT64 TIMESTAMP_MICROS (wall
+ * clock times as UTC) and NUMBER/DECIMAL columns too wide for a long or with a scale
+ * DECIMAL. Everything else is written as a UTF8 string. All fields are optional so
+ * nulls are kept as nulls. Values are written as they come from the database, without
+ * the quoting and cleaning done for the DSV files.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ParquetWriteSupport extends WriteSupport<ResultSet> {
+
+    private final MessageType schema;
+    private final String[] names;
+    private final Relational_NativeType[] types;
+    private final int[] scales;
+    private final Relational_BlobStore blobStore;
+    private final boolean durableBlobs;
+    private final Calendar utc = Relational_NativeType.newUtcCalendar();
+    private byte[] blobBuffer = null;
+    private RecordConsumer recordConsumer;
+
+    public Relational_ParquetWriteSupport(ResultSetMetaData rsmd, Relational_ColumnPlan plan, String DB_TYPE, Relational_BlobStore blobStore, boolean durableBlobs) throws SQLException {
+        this.blobStore = blobStore;
+        this.durableBlobs = durableBlobs;
+        int colCount = plan.getColumnCount();
+        names = new String[colCount + 1];
+        types = new Relational_NativeType[colCount + 1];
+        scales = new int[colCount + 1];
+
+        org.apache.parquet.schema.Types.MessageTypeBuilder builder = org.apache.parquet.schema.Types.buildMessage();
+        Set<String> usedNames = new HashSet<String>();
+        for (int i = 1; i <= colCount; i++) {
+
+            // FIELD NAMES HAVE TO BE UNIQUE - A JOIN CAN RETURN THE SAME COLUMN NAME TWICE
+            String name = rsmd.getColumnLabel(i);
+            String uniqueName = name;
+            for (int n = 2; !usedNames.add(uniqueName.toUpperCase()); n++) {
+                uniqueName = name + "_" + n;
+            }
+            names[i] = uniqueName;
+
+            types[i] = Relational_NativeType.resolve(rsmd, i, DB_TYPE, plan, blobStore != null);
+            switch (types[i]) {
+                case INT32:
+                    builder.optional(PrimitiveTypeName.INT32).named(uniqueName);
+                    break;
+                case INT64:
+                    builder.optional(PrimitiveTypeName.INT64).named(uniqueName);
+                    break;
+                case FLOAT:
+                    builder.optional(PrimitiveTypeName.FLOAT).named(uniqueName);
+                    break;
+                case DOUBLE:
+                    builder.optional(PrimitiveTypeName.DOUBLE).named(uniqueName);
+                    break;
+                case DECIMAL:
+                    scales[i] = rsmd.getScale(i);
+                    builder.optional(PrimitiveTypeName.BINARY).as(OriginalType.DECIMAL).precision(rsmd.getPrecision(i)).scale(scales[i]).named(uniqueName);
+                    break;
+                case BOOLEAN:
+                    builder.optional(PrimitiveTypeName.BOOLEAN).named(uniqueName);
+                    break;
+                case DATE:
+                    builder.optional(PrimitiveTypeName.INT32).as(OriginalType.DATE).named(uniqueName);
+                    break;
+                case TIME:
+                    builder.optional(PrimitiveTypeName.INT64).as(OriginalType.TIME_MICROS).named(uniqueName);
+                    break;
+                case TIMESTAMP:
+                case TIMESTAMP_UTC:
+                    builder.optional(PrimitiveTypeName.INT64).as(OriginalType.TIMESTAMP_MICROS).named(uniqueName);
+                    break;
+                case BYTES:
+                    builder.optional(PrimitiveTypeName.BINARY).named(uniqueName);
+                    break;
+                default:
+                    // STRINGS AND BLOB STORE REFERENCES
+                    builder.optional(PrimitiveTypeName.BINARY).as(OriginalType.UTF8).named(uniqueName);
+                    break;
+            }
+        }
+        schema = builder.named("row");
+    }
+
+    @Override
+    public WriteContext init(Configuration configuration) {
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("writer", "GNC_DataExtraction");
+        return new WriteContext(schema, metadata);
+    }
+
+    @Override
+    public void prepareForWrite(RecordConsumer recordConsumer) {
+        this.recordConsumer = recordConsumer;
+    }
+
+    /*
+     * Writes the row the result set is on
+     */
+    @Override
+    public void write(ResultSet rs) {
+        try {
+            recordConsumer.startMessage();
+            for (int i = 1; i < types.length; i++) {
+                writeColumn(rs, i);
+            }
+            recordConsumer.endMessage();
+        } catch (SQLException | IOException ex) {
+            // WriteSupport CAN'T THROW CHECKED EXCEPTIONS - UNWRAPPED AGAIN BY Relational_ParquetWriter
+            throw new ColumnReadException(ex);
+        }
+    }
+
+    private void writeColumn(ResultSet rs, int i) throws SQLException, IOException {
+        switch (types[i]) {
+            case INT32: {
+                int value = rs.getInt(i);
+                if (!rs.wasNull()) {
+                    startField(i);
+                    recordConsumer.addInteger(value);
+                    endField(i);
+                }
+                break;
+            }
+            case INT64: {
+                long value = rs.getLong(i);
+                if (!rs.wasNull()) {
+                    startField(i);
+                    recordConsumer.addLong(value);
+                    endField(i);
+                }
+                break;
+            }
+            case FLOAT: {
+                float value = rs.getFloat(i);
+                if (!rs.wasNull()) {
+                    startField(i);
+                    recordConsumer.addFloat(value);
+                    endField(i);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(i);
+                if (!rs.wasNull()) {
+                    startField(i);
+                    recordConsumer.addDouble(value);
+                    endField(i);
+                }
+                break;
+            }
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(i);
+                if (!rs.wasNull()) {
+                    startField(i);
+                    recordConsumer.addBoolean(value);
+                    endField(i);
+                }
+                break;
+            }
+            case DATE: {
+                Date value = rs.getDate(i, utc);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addInteger(Relational_NativeType.toDays(value));
+                    endField(i);
+                }
+                break;
+            }
+            case TIME: {
+                Timestamp value = rs.getTimestamp(i, utc);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addLong(Relational_NativeType.toMicrosOfDay(value));
+                    endField(i);
+                }
+                break;
+            }
+            case TIMESTAMP: {
+                // WALL CLOCK TIME READ AS UTC SO THE TIME ZONE OF THE HOST DOES NOT SHIFT IT
+                Timestamp value = rs.getTimestamp(i, utc);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addLong(Relational_NativeType.toMicros(value));
+                    endField(i);
+                }
+                break;
+            }
+            case TIMESTAMP_UTC: {
+                Timestamp value = rs.getTimestamp(i);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addLong(Relational_NativeType.toMicros(value));
+                    endField(i);
+                }
+                break;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(i);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addBinary(Binary.fromConstantByteArray(value.setScale(scales[i], RoundingMode.HALF_UP).unscaledValue().toByteArray()));
+                    endField(i);
+                }
+                break;
+            }
+            case BYTES: {
+                byte[] value = rs.getBytes(i);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addBinary(Binary.fromConstantByteArray(value));
+                    endField(i);
+                }
+                break;
+            }
+            case BLOB_REFERENCE: {
+                Blob blob = rs.getBlob(i);
+                if (blob != null) {
+                    if (blobBuffer == null) {
+                        blobBuffer = new byte[64 * 1024];
+                    }
+                    startField(i);
+                    recordConsumer.addBinary(Binary.fromString(blobStore.store(blob, blobBuffer, durableBlobs)));
+                    endField(i);
+                }
+                break;
+            }
+            default: {
+                String value = rs.getString(i);
+                if (value != null) {
+                    startField(i);
+                    recordConsumer.addBinary(Binary.fromString(value));
+                    endField(i);
+                }
+                break;
+            }
+        }
+    }
+
+    private void startField(int i) {
+        recordConsumer.startField(names[i], i - 1);
+    }
+
+    private void endField(int i) {
+        recordConsumer.endField(names[i], i - 1);
+    }
+
+    /**
+     * @return the Parquet schema of the query
+     */
+    public MessageType getSchema() {
+        return schema;
+    }
+
+    /*
+     * Carries a database or BLOB store error out of write()
+     */
+    public static class ColumnReadException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ColumnReadException(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Level;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.getEstimatedCompleteDate;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * Writes the rows of a query to Parquet files (fileName.N.parquet).
+ *
+ * Like the DSV chunk files a new file is started whenever the chunk policy says the
+ * current one is full, so each file can be loaded on its own, and each file is
+ * renamed to its final name once it is complete and reported to the progress of the
+ * entry. After a failure the file being written is dropped instead. The size counted against the policy
+ * is the data written so far, including the row group still in memory. Within a file rows are grouped into row groups of about
+ * rowGroupSize bytes and dictionary encoding is used for every column - Parquet falls
+ * back to plain encoding by itself for columns with too many distinct values.
+ * Files are written straight to the local file system, without going through HDFS.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_ParquetWriter {
+
+    private final String OUTPUT_DIR;
+    private final String fileName;
+    private final Relational_ParquetWriteSupport writeSupport;
+    private final Relational_ChunkPolicy policy;
+    private final long rowCount;
+    private final long queryStartTime;
+    private final int rowGroupSize;
+    private final CompressionCodecName codec;
+    private final Relational_EntryProgress progress;
+
+    private ParquetWriter<ResultSet> out = null;
+    private File chunkFile = null;
+    private long chunkOpenedAt = 0;
+    private long chunkCount = 0;
+    private long rowsInChunk = 0;
+    private long rowsWritten = 0;
+    private Object lastKey = null;
+
+    public Relational_ParquetWriter(String OUTPUT_DIR, String fileName, Relational_ParquetWriteSupport writeSupport, Relational_ChunkPolicy policy,
+            long rowCount, long queryStartTime, int rowGroupSize, String codec, Relational_EntryProgress progress) throws IOException {
+        this.OUTPUT_DIR = OUTPUT_DIR;
+        this.fileName = fileName;
+        this.writeSupport = writeSupport;
+        this.policy = policy;
+        this.rowCount = rowCount;
+        this.queryStartTime = queryStartTime;
+        this.rowGroupSize = rowGroupSize;
+        this.progress = progress;
+        this.chunkCount = progress.getChunksDone();
+        this.rowsWritten = progress.getRowsDone();
+        try {
+            this.codec = CompressionCodecName.valueOf(codec.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unknown Parquet compression " + codec);
+        }
+
+        // IF OUTPUT DIR DOES NOT EXIST -> CREATE IT
+        File outputDir = new File(OUTPUT_DIR);
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+
+        // CREATE INITIAL FILE
+        openChunk();
+    }
+
+    private void openChunk() throws IOException {
+        chunkCount++;
+        rowsInChunk = 0;
+        chunkOpenedAt = System.currentTimeMillis();
+        chunkFile = new File(OUTPUT_DIR + fileName + "." + chunkCount + ".parquet");
+
+        // WRITTEN UNDER A TEMPORARY NAME UNTIL COMPLETE
+        out = new Builder(new LocalOutputFile(Relational_ChunkPolicy.partFile(chunkFile)), writeSupport)
+                .withConf(new Configuration(false))
+                .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                .withCompressionCodec(codec)
+                .withRowGroupSize(rowGroupSize)
+                .withPageSize(ParquetWriter.DEFAULT_PAGE_SIZE)
+                .withDictionaryEncoding(true)
+                .build();
+    }
+
+    /*
+     * Writes the row the result set is on, moving on to the next file whenever the chunk is full
+     */
+    public void write(ResultSet rs) throws IOException, SQLException {
+        // READ THE KEY FIRST SO A KEY THAT REPEATS THE LAST ONE OF THE CHUNK IS SEEN BEFORE THE CHUNK IS REPORTED
+        Object key = progress.readKey(rs);
+
+        // CREATE NEW OUTPUT FILE EVERYTIME THE CHUNK IS FULL
+        if (policy.isFull(rowsInChunk, out.getDataSize(), chunkOpenedAt)) {
+            closeChunk();
+            log(Level.INFO, "Parquet file " + fileName + "." + chunkCount + " complete.", false);
+
+            // LOG PERCENT COMPLETE AND EST TIME LEFT
+            if (rowCount != 0) {
+                System.out.println("Current estimated completion time for " + fileName + ": " + getEstimatedCompleteDate(queryStartTime, rowsWritten, rowCount));
+            } else {
+                System.out.println("Estimated completion time unavailable for " + fileName);
+            }
+            openChunk();
+        }
+
+        try {
+            out.write(rs);
+        } catch (Relational_ParquetWriteSupport.ColumnReadException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw (IOException) ex.getCause();
+        }
+        lastKey = key;
+        rowsInChunk++;
+        rowsWritten++;
+    }
+
+    /*
+     * Closes the last file
+     */
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        closeChunk();
+        if (rowsInChunk > 0) {
+            log(Level.INFO, "Parquet file " + fileName + "." + chunkCount + " complete (final partial file).", false);
+        }
+        log(Level.INFO, rowsWritten + " rows written to disk for " + fileName, false);
+    }
+
+    private void closeChunk() throws IOException {
+        try {
+            out.close();
+        } finally {
+            out = null;
+        }
+        Relational_ChunkPolicy.publish(chunkFile, progress.isDurable());
+        progress.chunkDone(chunkCount, rowsWritten, lastKey);
+    }
+
+    /*
+     * Drops the file being written after a failure - the files already complete are kept
+     */
+    public void abort() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException | RuntimeException ex) {
+        } finally {
+            out = null;
+        }
+        Relational_ChunkPolicy.partFile(chunkFile).delete();
+        log(Level.WARNING, "Parquet file " + fileName + "." + chunkCount + " dropped as the query did not complete", false);
+    }
+
+    private static class Builder extends ParquetWriter.Builder<ResultSet, Builder> {
+
+        private final Relational_ParquetWriteSupport writeSupport;
+
+        Builder(OutputFile file, Relational_ParquetWriteSupport writeSupport) {
+            super(file);
+            this.writeSupport = writeSupport;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        @Override
+        protected WriteSupport<ResultSet> getWriteSupport(Configuration conf) {
+            return writeSupport;
+        }
+    }
+
+    /*
+     * A file on the local disk - avoids the Hadoop file system (and winutils on Windows)
+     */
+    private static class LocalOutputFile implements OutputFile {
+
+        private final File file;
+
+        LocalOutputFile(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) throws IOException {
+            if (file.exists()) {
+                throw new IOException(file + " already exists");
+            }
+            return createOrOverwrite(blockSizeHint);
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+            final BufferedOutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+            return new PositionOutputStream() {
+                private long position = 0;
+
+                @Override
+                public long getPos() {
+                    return position;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    stream.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    stream.write(b, off, len);
+                    position += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    stream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                }
+            };
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+}
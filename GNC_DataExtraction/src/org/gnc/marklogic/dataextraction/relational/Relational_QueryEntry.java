@@ -0,0 +1,617 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.cleanQueryText;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.getQueryFromFile;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.isValidFilePath;
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * A single entry of the query file:
+ *
+ * fileName###query or query file###count query (optional)###PARTITION=key:N (optional)###KEY=column (optional)###WATERMARK=column (optional)
+ *
+ * Partitioned entries are split into N key-range entries, each written to
+ * its own chunk series (fileName.part1.1.dsv, fileName.part2.1.dsv, ...).
+ *
+ * With a KEY column the rows are written in key order, so an entry that failed part
+ * way through can carry on after the key of the last row written (WHERE key > ?)
+ * instead of starting over. The column has to be unique for that - an entry whose key
+ * turns out to repeat starts over instead, see Relational_EntryProgress.
+ *
+ * With a WATERMARK column (a timestamp or an ever increasing id) each run only picks up
+ * the rows past the mark of the last complete run, see Relational_Watermark. The key
+ * range of its partitions and its row count are then taken from those rows only.
+ *
+ * Partitions, keys and watermarks all run the query as a derived table. On MSSQL every
+ * column of the query must then have a name of its own, and an ORDER BY at the end of the
+ * query is only allowed with TOP or OFFSET, so OFFSET 0 ROWS is added when it has neither.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_QueryEntry {
+
+    private static final String PARTITION_PREFIX = "PARTITION=";
+    private static final String KEY_PREFIX = "KEY=";
+    private static final String WATERMARK_PREFIX = "WATERMARK=";
+
+    private final String entry;
+    private final String fileName;
+    private final String baseFileName;
+    private final String query;
+    private String countQuery = null;
+    private String partitionKey = null;
+    private int partitionCount = 1;
+    private String resumeKey = null;
+
+    // only set when the entry carries on from an earlier attempt
+    private Object resumeAfter = null;
+
+    // only set on the entry created by withWatermark()
+    private String watermarkColumn = null;
+    private Relational_Watermark watermark = null;
+
+    // set once the query is known to run as a derived table on MSSQL
+    private boolean derivedTableChecked = false;
+
+    // only set on the entries created by partition()
+    private Object lowerBound = null;
+    private Object upperBound = null;
+    private boolean includeNullKeys = false;
+    private boolean castBoundsToDate = false;
+    private long rowCount = -1;
+
+    public Relational_QueryEntry(String entry) throws IOException {
+        this.entry = entry;
+
+        // GET DATA FROM ENTRY LINE
+        String[] data = entry.split("###");
+        fileName = data[0];
+        baseFileName = fileName;
+        String secondComp = data[1];
+
+        for (int i = 2; i < data.length; i++) {
+            if (data[i].trim().toUpperCase().startsWith(PARTITION_PREFIX)) {
+                parsePartitionSpec(data[i].trim().substring(PARTITION_PREFIX.length()));
+            } else if (data[i].trim().toUpperCase().startsWith(KEY_PREFIX)) {
+                resumeKey = data[i].trim().substring(KEY_PREFIX.length()).trim();
+                if (resumeKey.equals("")) {
+                    throw new IOException("Invalid key specification " + data[i].trim() + " - expected " + KEY_PREFIX + "column");
+                }
+            } else if (data[i].trim().toUpperCase().startsWith(WATERMARK_PREFIX)) {
+                watermarkColumn = data[i].trim().substring(WATERMARK_PREFIX.length()).trim();
+                if (watermarkColumn.equals("")) {
+                    throw new IOException("Invalid watermark specification " + data[i].trim() + " - expected " + WATERMARK_PREFIX + "column");
+                }
+            } else if (!data[i].trim().equals("")) {
+                countQuery = cleanQueryText(data[i]);
+            }
+        }
+
+        // IF SECOND COMPONENT IS A TXT FILE URI -> READ QUERY FROM FILE
+        if (isValidFilePath(secondComp)) {
+            query = getQueryFromFile(secondComp);
+            log(Level.INFO, "Query Taken From File  " + query, false);
+        } else {
+            query = cleanQueryText(secondComp);
+        }
+    }
+
+    private Relational_QueryEntry(Relational_QueryEntry parent, int partitionNo, String query) {
+        this.entry = parent.entry;
+        this.fileName = parent.fileName + ".part" + partitionNo;
+        this.baseFileName = parent.baseFileName;
+        this.query = query;
+        this.partitionKey = parent.partitionKey;
+        this.resumeKey = parent.resumeKey;
+        this.watermarkColumn = parent.watermarkColumn;
+        this.watermark = parent.watermark;
+        this.derivedTableChecked = parent.derivedTableChecked;
+    }
+
+    private Relational_QueryEntry(Relational_QueryEntry parent, Relational_Watermark watermark) {
+        this.entry = parent.entry;
+        this.fileName = parent.fileName + watermark.getFileSuffix();
+        this.baseFileName = parent.baseFileName;
+        this.query = parent.query;
+        this.countQuery = parent.countQuery;
+        this.partitionKey = parent.partitionKey;
+        this.partitionCount = parent.partitionCount;
+        this.resumeKey = parent.resumeKey;
+        this.watermarkColumn = parent.watermarkColumn;
+        this.watermark = watermark;
+        this.derivedTableChecked = parent.derivedTableChecked;
+    }
+
+    private void parsePartitionSpec(String spec) throws IOException {
+        String[] parts = spec.split(":");
+        try {
+            partitionKey = parts[0].trim();
+            partitionCount = Integer.parseInt(parts[1].trim());
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            throw new IOException("Invalid partition specification " + spec + " - expected " + PARTITION_PREFIX + "key:N");
+        }
+        if (partitionKey.equals("") || partitionCount < 1) {
+            throw new IOException("Invalid partition specification " + spec + " - expected " + PARTITION_PREFIX + "key:N");
+        }
+    }
+
+    /*
+     * Splits this entry into key-range entries using the min and max of the partition key.
+     * The first partition also picks up rows with a null key and the last one is open ended,
+     * so every row of the original query lands in exactly one partition. For a watermark
+     * run the min and max are those of the rows in the run.
+     */
+    public List<Relational_QueryEntry> partition(Connection conn, String DB_TYPE) throws SQLException {
+        List<Relational_QueryEntry> partitions = new ArrayList<Relational_QueryEntry>();
+        String source = derivedTable(conn, query, "PQ", DB_TYPE);
+        String key = "PQ." + partitionKey;
+
+        // NUMBER / DECIMAL KEYS CAN BE WIDER THAN A LONG, DATE KEYS ARE HELD AS MILLISECONDS
+        BigDecimal min = null, max = null;
+        boolean isDateKey;
+        String keyTypeName;
+        PreparedStatement st = conn.prepareStatement("SELECT MIN(" + key + "), MAX(" + key + ") FROM " + derivedTable(conn, boundedQuery(conn, DB_TYPE), "PQ", DB_TYPE));
+        try {
+            bindBounds(st);
+            ResultSet rs = st.executeQuery();
+            int keyType = rs.getMetaData().getColumnType(1);
+            keyTypeName = rs.getMetaData().getColumnTypeName(1);
+            isDateKey = keyType == Types.DATE || keyType == Types.TIMESTAMP;
+            boolean isNumericKey = keyType == Types.TINYINT || keyType == Types.SMALLINT || keyType == Types.INTEGER
+                    || keyType == Types.BIGINT || keyType == Types.NUMERIC || keyType == Types.DECIMAL;
+
+            if (!isDateKey && !isNumericKey) {
+                throw new SQLException("Partition key " + partitionKey + " is of type " + keyTypeName + " - only numeric and date keys can be partitioned");
+            }
+
+            if (rs.next()) {
+                if (isDateKey) {
+                    Timestamp minTs = rs.getTimestamp(1);
+                    Timestamp maxTs = rs.getTimestamp(2);
+                    if (minTs != null) {
+                        min = BigDecimal.valueOf(minTs.getTime());
+                        max = BigDecimal.valueOf(maxTs.getTime());
+                    }
+                } else {
+                    min = rs.getBigDecimal(1);
+                    max = rs.getBigDecimal(2);
+                }
+            }
+            rs.close();
+        } finally {
+            st.close();
+        }
+        boolean empty = (min == null);
+
+        // WORK OUT THE BOUNDARIES BETWEEN PARTITIONS, DROPPING ANY THAT COLLAPSE ONTO EACH OTHER
+        List<BigDecimal> boundaries = new ArrayList<BigDecimal>();
+        if (!empty) {
+            BigDecimal range = max.subtract(min);
+            int scale = Math.max(0, Math.max(min.scale(), max.scale()));
+            for (int k = 1; k < partitionCount; k++) {
+                BigDecimal boundary = min.add(range.multiply(BigDecimal.valueOf(k))
+                        .divide(BigDecimal.valueOf(partitionCount), scale, RoundingMode.FLOOR));
+                if (boundary.compareTo(min) > 0 && (boundaries.isEmpty() || boundary.compareTo(boundaries.get(boundaries.size() - 1)) > 0)) {
+                    boundaries.add(boundary);
+                }
+            }
+        }
+
+        // ORACLE DATE COLUMNS ARE COMPARED AGAINST DATES SO INDEXES ON THE KEY CAN STILL BE USED
+        boolean castToDate = DB_TYPE.equals("ORACLE") && keyTypeName.equalsIgnoreCase("DATE");
+
+        for (int k = 0; k <= boundaries.size(); k++) {
+            String where = "";
+            if (k > 0) {
+                where += key + " >= " + (castToDate ? "CAST(? AS DATE)" : "?");
+            }
+            if (k < boundaries.size()) {
+                where += (where.equals("") ? "" : " AND ") + key + " < " + (castToDate ? "CAST(? AS DATE)" : "?");
+            }
+            if (k == 0) {
+                where = "(" + (where.equals("") ? "1 = 1" : where) + " OR " + key + " IS NULL)";
+            }
+
+            Relational_QueryEntry partition = new Relational_QueryEntry(this, k + 1, "SELECT * FROM " + source + " WHERE " + where);
+            if (k > 0) {
+                partition.lowerBound = toBound(boundaries.get(k - 1), isDateKey);
+            }
+            if (k < boundaries.size()) {
+                partition.upperBound = toBound(boundaries.get(k), isDateKey);
+            }
+            partition.includeNullKeys = (k == 0);
+            partition.castBoundsToDate = castToDate;
+            partitions.add(partition);
+        }
+
+        log(Level.INFO, "Split " + fileName + " into " + partitions.size() + " partitions on " + partitionKey
+                + (empty ? " (no key values found)" : " between " + toBound(min, isDateKey) + " and " + toBound(max, isDateKey)), true);
+        return partitions;
+    }
+
+    /*
+     * Starts a run of an entry with a WATERMARK column, finding the highest watermark past
+     * the mark of the last run - null when there are no new rows. A run that did not
+     * complete is picked up again with the same bounds.
+     */
+    public Relational_Watermark startWatermark(Connection conn, Relational_WatermarkStore store, String DB_TYPE) throws SQLException, IOException {
+        Relational_Watermark pending = store.getPending(fileName);
+        if (pending != null) {
+            log(Level.INFO, "Picking up the incomplete run of " + fileName + " up to watermark " + pending.getUpTo(), true);
+            return pending;
+        }
+
+        Object after = store.getMark(fileName);
+        String column = "WQ." + watermarkColumn;
+        PreparedStatement pstmt = conn.prepareStatement("SELECT MAX(" + column + ") FROM " + derivedTable(conn, query, "WQ", DB_TYPE)
+                + (after != null ? " WHERE " + column + " > " + (store.isCastToDate(fileName) ? "CAST(? AS DATE)" : "?") : ""));
+        Object upTo = null;
+        boolean castToDate;
+        try {
+            if (after != null) {
+                setBound(pstmt, 1, after);
+            }
+            ResultSet rs = pstmt.executeQuery();
+            int type = rs.getMetaData().getColumnType(1);
+            String typeName = rs.getMetaData().getColumnTypeName(1);
+            castToDate = DB_TYPE.equals("ORACLE") && typeName.equalsIgnoreCase("DATE");
+            if (rs.next()) {
+                if (type == Types.DATE || type == Types.TIMESTAMP) {
+                    upTo = rs.getTimestamp(1);
+                } else if (type == Types.TINYINT || type == Types.SMALLINT || type == Types.INTEGER || type == Types.BIGINT
+                        || type == Types.NUMERIC || type == Types.DECIMAL) {
+                    upTo = toWholeNumber(rs.getBigDecimal(1));
+                } else {
+                    throw new SQLException("Watermark column " + watermarkColumn + " is of type " + typeName + " - only numeric and date columns can be used");
+                }
+            }
+            rs.close();
+        } finally {
+            pstmt.close();
+        }
+
+        if (upTo == null) {
+            log(Level.INFO, "No new rows for " + fileName + (after == null ? "" : " past watermark " + after), true);
+            return null;
+        }
+        log(Level.INFO, "Extracting " + fileName + " rows with " + watermarkColumn + (after == null ? "" : " after " + after + " and") + " up to " + upTo, true);
+        return store.begin(fileName, upTo, castToDate);
+    }
+
+    private static Object toWholeNumber(BigDecimal value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException ex) {
+            return value;
+        }
+    }
+
+    /**
+     * @return a copy of this entry bounded to the rows of the given watermark run, writing its own files
+     */
+    public Relational_QueryEntry withWatermark(Relational_Watermark watermark) {
+        return new Relational_QueryEntry(this, watermark);
+    }
+
+    private static Object toBound(BigDecimal value, boolean isDateKey) {
+        if (isDateKey) {
+            return new Timestamp(value.longValue());
+        }
+        return toWholeNumber(value);
+    }
+
+    /*
+     * Wraps the query (or the query already wrapped for a watermark) as a derived table with the given alias,
+     * within the limits MSSQL puts on derived tables
+     */
+    private String derivedTable(Connection conn, String sql, String alias, String DB_TYPE) throws SQLException {
+        if (!DB_TYPE.equals("MSSQL")) {
+            return "(" + sql + ") " + alias;
+        }
+
+        // EVERY COLUMN OF A DERIVED TABLE NEEDS A NAME OF ITS OWN - THE COLUMNS OF THE QUERY ARE ONLY LOOKED AT ONCE
+        if (!derivedTableChecked) {
+            checkColumnNames(conn);
+            derivedTableChecked = true;
+        }
+
+        // AN ORDER BY IS ONLY ALLOWED IN A DERIVED TABLE WITH TOP OR OFFSET
+        List<String> words = topLevelWords(sql);
+        int orderBy = -1;
+        for (int i = 0; i + 1 < words.size(); i++) {
+            if (words.get(i).equals("ORDER") && words.get(i + 1).equals("BY")) {
+                orderBy = i;
+            }
+        }
+        int select = words.indexOf("SELECT");
+        int top = select + 1;
+        if (top < words.size() && (words.get(top).equals("DISTINCT") || words.get(top).equals("ALL"))) {
+            top++;
+        }
+        boolean hasTop = select >= 0 && top < words.size() && words.get(top).equals("TOP");
+        if (orderBy >= 0 && !hasTop && words.subList(orderBy, words.size()).indexOf("OFFSET") < 0) {
+            return "(" + sql + " OFFSET 0 ROWS) " + alias;
+        }
+        return "(" + sql + ") " + alias;
+    }
+
+    /*
+     * Picks up the columns MSSQL would reject in a derived table before the query is run as one
+     */
+    private void checkColumnNames(Connection conn) throws SQLException {
+        PreparedStatement describe = conn.prepareStatement(query);
+        try {
+            ResultSetMetaData rsmd = describe.getMetaData();
+            Set<String> names = new HashSet<String>();
+            for (int i = 1; rsmd != null && i <= rsmd.getColumnCount(); i++) {
+                String name = rsmd.getColumnLabel(i);
+                if (name == null || name.trim().equals("")) {
+                    throw new SQLException("Column " + i + " of the query for " + fileName + " has no name - MSSQL can only run it as a derived table (PARTITION, KEY or WATERMARK) once every column is named with AS");
+                }
+                if (!names.add(name.toUpperCase())) {
+                    throw new SQLException("Column " + name + " appears more than once in the query for " + fileName + " - MSSQL can only run it as a derived table (PARTITION, KEY or WATERMARK) once every column has a name of its own");
+                }
+            }
+        } finally {
+            describe.close();
+        }
+    }
+
+    /*
+     * Splits a query into its words, upper cased, leaving out anything within brackets, quotes or comments
+     */
+    private static List<String> topLevelWords(String sql) {
+        List<String> words = new ArrayList<String>();
+        int depth = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '[') {
+                char close = (c == '[') ? ']' : c;
+                int end = sql.indexOf(close, i + 1);
+                i = (end < 0) ? sql.length() : end + 1;
+            } else if (c == '-' && sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = (end < 0) ? sql.length() : end + 1;
+            } else if (c == '/' && sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = (end < 0) ? sql.length() : end + 2;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                depth--;
+                i++;
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '@' || sql.charAt(i) == '#' || sql.charAt(i) == '$')) {
+                    i++;
+                }
+                if (depth == 0) {
+                    words.add(sql.substring(start, i).toUpperCase());
+                }
+            } else {
+                i++;
+            }
+        }
+        return words;
+    }
+
+    /*
+     * Prepares the query of this entry, binding the key range when it is a partition and
+     * the key to carry on after when it is resumed
+     */
+    public PreparedStatement prepareStatement(Connection conn, String DB_TYPE) throws SQLException {
+        String sql = boundedQuery(conn, DB_TYPE);
+        if (resumeKey != null) {
+            String key = "RQ." + resumeKey;
+            sql = "SELECT * FROM " + derivedTable(conn, sql, "RQ", DB_TYPE) + (resumeAfter != null ? " WHERE " + key + " > ?" : "") + " ORDER BY " + key;
+        }
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        int param = bindBounds(pstmt);
+        if (resumeKey != null && resumeAfter != null) {
+            setBound(pstmt, param++, resumeAfter);
+        }
+        return pstmt;
+    }
+
+    /*
+     * Prepares the row count of this entry, null when it has no count query - for a watermark
+     * run the rows of the run are counted instead, as the count query covers the whole table
+     */
+    public PreparedStatement prepareCountStatement(Connection conn, String DB_TYPE) throws SQLException {
+        if (countQuery == null || countQuery.trim().equals("")) {
+            return null;
+        }
+        if (watermark == null) {
+            return conn.prepareStatement(countQuery);
+        }
+        PreparedStatement pstmt = conn.prepareStatement("SELECT COUNT(*) FROM " + derivedTable(conn, boundedQuery(conn, DB_TYPE), "CQ", DB_TYPE));
+        bindBounds(pstmt);
+        return pstmt;
+    }
+
+    /*
+     * The query limited to the watermark run when there is one - its parameters are bound by bindBounds
+     */
+    private String boundedQuery(Connection conn, String DB_TYPE) throws SQLException {
+        if (watermark == null) {
+            return query;
+        }
+        String column = "WQ." + watermarkColumn;
+        String param = watermark.isCastToDate() ? "CAST(? AS DATE)" : "?";
+        return "SELECT * FROM " + derivedTable(conn, query, "WQ", DB_TYPE) + " WHERE " + (watermark.getAfter() != null ? column + " > " + param + " AND " : "") + column + " <= " + param;
+    }
+
+    /*
+     * Binds the key range of a partition and the bounds of the watermark run, returning the next parameter
+     */
+    private int bindBounds(PreparedStatement pstmt) throws SQLException {
+        int param = 1;
+        if (lowerBound != null) {
+            setBound(pstmt, param++, lowerBound);
+        }
+        if (upperBound != null) {
+            setBound(pstmt, param++, upperBound);
+        }
+        if (watermark != null) {
+            if (watermark.getAfter() != null) {
+                setBound(pstmt, param++, watermark.getAfter());
+            }
+            setBound(pstmt, param++, watermark.getUpTo());
+        }
+        return param;
+    }
+
+    private static void setBound(PreparedStatement pstmt, int param, Object bound) throws SQLException {
+        if (bound instanceof Timestamp) {
+            pstmt.setTimestamp(param, (Timestamp) bound);
+        } else if (bound instanceof BigDecimal) {
+            pstmt.setBigDecimal(param, (BigDecimal) bound);
+        } else if (bound instanceof String) {
+            pstmt.setString(param, (String) bound);
+        } else {
+            pstmt.setLong(param, (Long) bound);
+        }
+    }
+
+    /**
+     * @return the original line from the query file
+     */
+    public String getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return the fileName
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the file name of the query file entry, without any partition suffix
+     */
+    public String getBaseFileName() {
+        return baseFileName;
+    }
+
+    /**
+     * @return the query
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return the countQuery
+     */
+    public String getCountQuery() {
+        return countQuery;
+    }
+
+    /**
+     * @return true when the entry should be split into key ranges
+     */
+    public boolean isPartitioned() {
+        return partitionKey != null && partitionCount > 1;
+    }
+
+    /**
+     * @return the column the rows are ordered by, null when the entry has no KEY
+     */
+    public String getResumeKey() {
+        return resumeKey;
+    }
+
+    /**
+     * @return the column the watermark is taken from, null when the entry has no WATERMARK
+     */
+    public String getWatermarkColumn() {
+        return watermarkColumn;
+    }
+
+    /**
+     * @return the watermark run this entry belongs to, null when it is not bounded by one
+     */
+    public Relational_Watermark getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @param resumeAfter the key of the last row already written, null to start from the first row
+     */
+    public void setResumeAfter(Object resumeAfter) {
+        this.resumeAfter = resumeAfter;
+    }
+
+    /**
+     * @return the number of partitions requested
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * @return the known row count, or -1 when it should be taken from the count query
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param rowCount the rowCount to set
+     */
+    public void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * @return a description of the key range, empty when this is not a partition
+     */
+    public String getRangeDescription() {
+        if (lowerBound == null && upperBound == null && !includeNullKeys) {
+            return "";
+        }
+        return (lowerBound == null ? "" : lowerBound + " <= ") + partitionKey + (upperBound == null ? "" : " < " + upperBound)
+                + (includeNullKeys ? " (including null keys)" : "") + (castBoundsToDate ? " as DATE" : "");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+/**
+ * A batch of encoded rows handed from the fetch stage to the writer stage.
+ *
+ * Every row is encoded with its leading "\r\n" and the end offset of each row is
+ * recorded, so the writer can start a new chunk file between any two rows and
+ * drop the line break in front of the first row of a file without headers.
+ * The key of each row is kept with it for entries with a KEY column.
+ * Anything after the end of the last row is the start of a row that carries on
+ * in the next batch. Batches are recycled once written.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_RowBatch {
+
+    private final StringBuilder rows = new StringBuilder(64 * 1024);
+    private int[] rowEnds;
+    private Object[] keys;
+    private int rowCount = 0;
+
+    public Relational_RowBatch(int capacity) {
+        rowEnds = new int[Math.max(capacity, 1)];
+        keys = new Object[rowEnds.length];
+    }
+
+    /*
+     * Marks the end of the row just appended to the buffer - the key is null when the entry has no key column
+     */
+    public void endRow(Object key) {
+        if (rowCount == rowEnds.length) {
+            int[] grown = new int[rowEnds.length * 2];
+            System.arraycopy(rowEnds, 0, grown, 0, rowCount);
+            rowEnds = grown;
+            Object[] grownKeys = new Object[grown.length];
+            System.arraycopy(keys, 0, grownKeys, 0, rowCount);
+            keys = grownKeys;
+        }
+        keys[rowCount] = key;
+        rowEnds[rowCount++] = rows.length();
+    }
+
+    public void clear() {
+        rows.setLength(0);
+        rowCount = 0;
+    }
+
+    /**
+     * @return the buffer the rows are encoded into
+     */
+    public StringBuilder getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of rows in the batch
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return true when the batch ends part way through a row
+     */
+    public boolean hasOpenRow() {
+        return rows.length() > getRowStart(rowCount);
+    }
+
+    /**
+     * @return the offset the given row starts at, including its leading "\r\n"
+     */
+    public int getRowStart(int row) {
+        return row == 0 ? 0 : rowEnds[row - 1];
+    }
+
+    /**
+     * @return the offset just after the given row
+     */
+    public int getRowEnd(int row) {
+        return rowEnds[row];
+    }
+
+    /**
+     * @return the key of the given row
+     */
+    public Object getKey(int row) {
+        return keys[row];
+    }
+}
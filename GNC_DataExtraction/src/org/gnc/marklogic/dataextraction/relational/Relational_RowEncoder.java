@@ -0,0 +1,218 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.gnc.marklogic.dataextraction.DataCleaner;
+
+/**
+ * Encodes the rows of a result set into a character buffer.
+ *
+ * How each column is read comes from the column plan compiled for the query, so the
+ * per row work is a straight dispatch over the columns. Integer and floating point
+ * columns are read through the primitive getters and appended without creating
+ * any intermediate objects. CLOBs are read through their character stream a window
+ * at a time and handed on to the writer as they go, so a CLOB of any size is never
+ * held in memory whole. BLOBs are either written inline as before or, when a BLOB
+ * store is given, streamed into the store with only their reference in the cell.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_RowEncoder {
+
+    private final ResultSet rs;
+    private final int colCount;
+    private final Relational_ColumnCodec[] codecs;
+    private final String DELIMITER;
+    private final DataCleaner dataCleaner;
+    private final DataCleaner textCleaner;
+    private final Relational_BlobStore blobStore;
+    private final boolean durableBlobs;
+
+    // characters read from a CLOB at a time, and how much of a row is buffered before it is passed on unfinished
+    private static final int CLOB_WINDOW = 32 * 1024;
+    private static final int PARTIAL_ROW_SIZE = 1024 * 1024;
+
+    // reused for every row
+    private final DateFormat outputDateFormat;
+    private final Date date = new Date();
+    private final StringBuffer dateBuffer = new StringBuffer(32);
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private final char[] clobWindow = new char[CLOB_WINDOW];
+    private byte[] blobBuffer = null;
+
+    public Relational_RowEncoder(ResultSet rs, Relational_ColumnPlan plan, String DELIMITER, String DATE_FORMAT, boolean literalDelimiter, Relational_BlobStore blobStore, boolean durableBlobs) {
+        this.rs = rs;
+        this.blobStore = blobStore;
+        this.durableBlobs = durableBlobs;
+        this.DELIMITER = DELIMITER;
+        this.dataCleaner = DataCleaner.forDelimiter(DELIMITER, true, literalDelimiter);
+        this.textCleaner = DataCleaner.forDelimiter(DELIMITER, false, literalDelimiter);
+        this.outputDateFormat = new SimpleDateFormat(DATE_FORMAT);
+
+        colCount = plan.getColumnCount();
+        codecs = new Relational_ColumnCodec[colCount + 1];
+        for (int i = 1; i <= colCount; i++) {
+            codecs[i] = plan.getCodec(i);
+        }
+    }
+
+    /*
+     * Appends the current row of the result set, preceded by a line break, to the current batch of the pipeline
+     */
+    public void encodeRow(Relational_RowPipeline pipeline) throws SQLException, IOException, InterruptedException {
+        StringBuilder buffer = pipeline.getRows();
+        buffer.append("\r\n");
+
+        // LOOP THROUGH COLUMNS IN ROW
+        for (int i = 1; i <= colCount; i++) {
+            switch (codecs[i]) {
+                case CHAR: {
+                    String str = rs.getString(i);
+                    if (isPresent(str)) {
+                        buffer.append('"');
+                        dataCleaner.appendTo(str, buffer);
+                        buffer.append('"');
+                    }
+                    break;
+                }
+                case TEXT: {
+                    String str = rs.getString(i);
+                    if (isPresent(str)) {
+                        buffer.append('"');
+                        textCleaner.appendTo(str, buffer);
+                        buffer.append('"');
+                    }
+                    break;
+                }
+                case DATE: {
+                    Timestamp ts = rs.getTimestamp(i);
+                    if (ts != null) {
+                        date.setTime(ts.getTime());
+                        dateBuffer.setLength(0);
+                        outputDateFormat.format(date, dateBuffer, fieldPosition);
+                        buffer.append(dateBuffer);
+                    }
+                    break;
+                }
+                case CLOB: {
+                    Clob myClob = rs.getClob(i);
+                    if (myClob != null) {
+                        buffer.append('"');
+                        buffer = appendClob(myClob, buffer, pipeline);
+                        buffer.append('"');
+                    }
+                    break;
+                }
+                case BLOB: {
+                    Blob blob = rs.getBlob(i);
+                    if (blob != null && blobStore != null) {
+                        if (blobBuffer == null) {
+                            blobBuffer = new byte[64 * 1024];
+                        }
+                        buffer.append('"').append(blobStore.store(blob, blobBuffer, durableBlobs)).append('"');
+                    } else if (blob != null) {
+                        buffer.append('"').append(Arrays.toString(blob.getBytes(1, (int) blob.length()))).append('"');
+                    }
+                    break;
+                }
+                case LONG: {
+                    long value = rs.getLong(i);
+                    if (!rs.wasNull()) {
+                        buffer.append(value);
+                    }
+                    break;
+                }
+                case INT: {
+                    int value = rs.getInt(i);
+                    if (!rs.wasNull()) {
+                        buffer.append(value);
+                    }
+                    break;
+                }
+                case DOUBLE: {
+                    double value = rs.getDouble(i);
+                    if (!rs.wasNull()) {
+                        buffer.append(value);
+                    }
+                    break;
+                }
+                case FLOAT: {
+                    float value = rs.getFloat(i);
+                    if (!rs.wasNull()) {
+                        buffer.append(value);
+                    }
+                    break;
+                }
+                case OBJECT:
+                default: {
+                    Object dataObj = rs.getObject(i);
+                    if (dataObj != null && !dataObj.equals("null") && !dataObj.equals("")) {
+                        buffer.append(dataObj);
+                    }
+                    break;
+                }
+            }
+
+            // APPEND PIPE AFTER EACH COLUMN EXCEPT AT END OF ROW
+            if (i < colCount) {
+                buffer.append(DELIMITER);
+            }
+        }
+    }
+
+    /*
+     * Streams a CLOB through the cleaner window by window, passing the row on to the
+     * writer whenever it gets too big. Returns the buffer to carry on encoding the row into.
+     */
+    private StringBuilder appendClob(Clob myClob, StringBuilder buffer, Relational_RowPipeline pipeline) throws SQLException, IOException, InterruptedException {
+        DataCleaner.TextStream cleaned = dataCleaner.openStream();
+        Reader reader = myClob.getCharacterStream();
+        try {
+            int read;
+            while ((read = reader.read(clobWindow, 0, CLOB_WINDOW)) != -1) {
+                cleaned.append(clobWindow, read, buffer);
+                if (buffer.length() >= PARTIAL_ROW_SIZE) {
+                    buffer = pipeline.flushPartialRow();
+                }
+            }
+            cleaned.finish(buffer);
+        } finally {
+            reader.close();
+        }
+        return buffer;
+    }
+
+    private static boolean isPresent(String str) {
+        return str != null && !str.equals("null") && !str.equals("");
+    }
+}
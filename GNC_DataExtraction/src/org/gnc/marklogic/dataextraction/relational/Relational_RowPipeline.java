@@ -0,0 +1,223 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Hands row batches from the fetch stage to the writer stage of a query.
+ *
+ * With a depth of 0 the batches are written in-line by the fetching thread. Otherwise
+ * the chunk writer runs on its own thread and a fixed set of depth + 1 batches is
+ * recycled between the two stages, so the fetch stage can keep reading from the
+ * database while the previous batches go to disk and blocks once it is depth batches
+ * ahead of the writer.
+ *
+ * A row that grows too big to keep in memory (a large CLOB) can be handed off before it
+ * is complete - the writer stage then carries on with it in the next batch.
+ *
+ * Unless finish() hands over every row complete and the writer stage writes them all,
+ * the chunk file being written is dropped rather than finished - it would end part way
+ * through the results, possibly part way through a row.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_RowPipeline implements Runnable {
+
+    // handed to the writer stage to say no more batches are coming
+    private static final Relational_RowBatch END = new Relational_RowBatch(1);
+
+    private final Relational_ChunkWriter writer;
+    private final BlockingQueue<Relational_RowBatch> freeBatches;
+    private final BlockingQueue<Relational_RowBatch> fullBatches;
+    private final Relational_RowBatch inlineBatch;
+    private final int batchSize;
+    private Relational_RowBatch batch;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private volatile IOException failure = null;
+    private volatile boolean aborted = false;
+
+    // set once the writer stage has been shut down, by finish() or close()
+    private boolean finished = false;
+
+    public Relational_RowPipeline(Relational_ChunkWriter writer, int depth, int batchSize, ExecutorService writerExecutor) {
+        this.writer = writer;
+        this.batchSize = batchSize;
+        if (depth > 0 && writerExecutor != null) {
+            inlineBatch = null;
+            freeBatches = new ArrayBlockingQueue<Relational_RowBatch>(depth + 1);
+            // ROOM FOR EVERY BATCH PLUS THE END MARKER
+            fullBatches = new ArrayBlockingQueue<Relational_RowBatch>(depth + 2);
+            for (int i = 0; i <= depth; i++) {
+                freeBatches.add(new Relational_RowBatch(batchSize));
+            }
+            writerExecutor.execute(this);
+        } else {
+            inlineBatch = new Relational_RowBatch(batchSize);
+            freeBatches = null;
+            fullBatches = null;
+        }
+        batch = (inlineBatch != null) ? inlineBatch : freeBatches.remove();
+    }
+
+    /*
+     * Writer stage - drains the filled batches until the end marker arrives
+     */
+    @Override
+    public void run() {
+        try {
+            Relational_RowBatch batch;
+            while ((batch = fullBatches.take()) != END) {
+                // AFTER A FAILURE KEEP RECYCLING BATCHES SO THE FETCH STAGE IS NEVER LEFT WAITING
+                if (failure == null && !aborted) {
+                    try {
+                        writer.write(batch);
+                    } catch (IOException ex) {
+                        failure = ex;
+                    } catch (RuntimeException ex) {
+                        failure = new IOException(ex);
+                    }
+                }
+                batch.clear();
+                freeBatches.add(batch);
+            }
+        } catch (InterruptedException ex) {
+            failure = new IOException("Chunk writer was interrupted");
+        } finally {
+            if (failure != null || aborted) {
+                writer.abort();
+            } else {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+            writerDone.countDown();
+        }
+    }
+
+    /**
+     * @return the buffer the current row is encoded into
+     */
+    public StringBuilder getRows() {
+        return batch.getRows();
+    }
+
+    /*
+     * Marks the end of the current row, handing the batch to the writer stage once it is full
+     */
+    public void endRow(Object key) throws IOException, InterruptedException {
+        batch.endRow(key);
+        if (batch.getRowCount() >= batchSize) {
+            handOff();
+        }
+    }
+
+    /*
+     * Hands the current batch to the writer stage with the row being encoded still open and
+     * returns the buffer to carry on encoding it into
+     */
+    public StringBuilder flushPartialRow() throws IOException, InterruptedException {
+        handOff();
+        return batch.getRows();
+    }
+
+    private void handOff() throws IOException, InterruptedException {
+        if (inlineBatch != null) {
+            writer.write(batch);
+            batch.clear();
+            return;
+        }
+        fullBatches.put(batch);
+
+        // WAIT FOR AN EMPTY BATCH WHILE THE WRITER STAGE IS TOO FAR BEHIND
+        batch = freeBatches.take();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Waits for the writer stage to write out every batch handed off and close the last chunk file
+     */
+    public void finish() throws IOException, InterruptedException {
+        // A ROW STILL BEING ENCODED MEANS THE FETCH STAGE DID NOT GET TO THE END - close() DROPS THE CHUNK
+        if (batch.hasOpenRow()) {
+            throw new IOException("The last row of the batch is not complete");
+        }
+        if (inlineBatch != null) {
+            if (hasRows()) {
+                handOff();
+            }
+            writer.close();
+            finished = true;
+            return;
+        }
+        boolean handedOff = false;
+        try {
+            if (hasRows()) {
+                handOff();
+            }
+            handedOff = true;
+        } finally {
+            // ANYTHING NOT HANDED OVER IS MISSING FROM THE CHUNK, SO THE WRITER STAGE DROPS IT
+            if (!handedOff) {
+                aborted = true;
+            }
+            fullBatches.put(END);
+            writerDone.await();
+            finished = true;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // A ROW FINISHED RIGHT AFTER flushPartialRow() LEAVES A BATCH WITH AN END BUT NO TEXT
+    private boolean hasRows() {
+        return batch.getRowCount() > 0 || batch.getRows().length() > 0;
+    }
+
+    /*
+     * Stops the writer stage unless finish() already has, dropping the chunk file it was writing - called
+     * whether or not the fetch stage completed, so every failure path goes through the writer's abort()
+     */
+    public void close() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        aborted = true;
+        if (inlineBatch != null) {
+            writer.abort();
+            return;
+        }
+        try {
+            fullBatches.put(END);
+            writerDone.await();
+        } catch (InterruptedException ex) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.gnc.marklogic.dataextraction.ExtractHelper.log;
+
+/**
+ * One run of a query file entry with a WATERMARK column - the rows with a watermark
+ * after the mark of the last run (all rows on the first run) up to and including upTo,
+ * the highest watermark when the run started. Rows with no watermark are never picked up.
+ *
+ * The first run writes the usual chunk files, later runs write numbered delta files
+ * (fileName.delta1.1.dsv, fileName.delta2.1.dsv, ...). The mark only moves up to upTo
+ * once every part of the run (every partition of a partitioned entry) is complete, and
+ * the chunk files of the run are forced to disk as they are completed, so a mark is
+ * never ahead of the rows on disk.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_Watermark {
+
+    private final Relational_WatermarkStore store;
+    private final String fileName;
+    private final Object after;
+    private final Object upTo;
+    private final long delta;
+    private final boolean castToDate;
+
+    private final AtomicInteger partsLeft = new AtomicInteger(1);
+    private volatile boolean failed = false;
+
+    Relational_Watermark(Relational_WatermarkStore store, String fileName, Object after, Object upTo, long delta, boolean castToDate) {
+        this.store = store;
+        this.fileName = fileName;
+        this.after = after;
+        this.upTo = upTo;
+        this.delta = delta;
+        this.castToDate = castToDate;
+    }
+
+    /*
+     * Sets how many parts (partitions) have to complete before the mark can move
+     */
+    public void expectParts(int parts) {
+        partsLeft.set(parts);
+    }
+
+    /*
+     * Called as each part of the run finishes, moving the mark once they have all completed
+     */
+    public void partDone(boolean complete) {
+        if (!complete) {
+            failed = true;
+        }
+        if (partsLeft.decrementAndGet() != 0) {
+            return;
+        }
+        if (failed) {
+            log(Level.WARNING, "Watermark for " + fileName + " left at " + (after == null ? "the start" : after) + " as the run did not complete - the next run will cover the same rows", true);
+            return;
+        }
+        try {
+            store.commit(this);
+            log(Level.INFO, "Watermark for " + fileName + " moved up to " + upTo, true);
+        } catch (IOException ex) {
+            log(Level.SEVERE, "Unable to save the watermark for " + fileName + ": " + ex.getMessage() + " - the next run will cover the same rows", true);
+        }
+    }
+
+    /**
+     * @return the file name of the entry, without the delta suffix
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the suffix of the files of this run - none for the first run
+     */
+    public String getFileSuffix() {
+        return (delta == 0) ? "" : ".delta" + delta;
+    }
+
+    /**
+     * @return the mark of the last complete run, null on the first run
+     */
+    public Object getAfter() {
+        return after;
+    }
+
+    /**
+     * @return the highest watermark included in this run
+     */
+    public Object getUpTo() {
+        return upTo;
+    }
+
+    /**
+     * @return the number of the delta, 0 for the first run
+     */
+    public long getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return true when the bounds are compared as Oracle DATEs
+     */
+    public boolean isCastToDate() {
+        return castToDate;
+    }
+}
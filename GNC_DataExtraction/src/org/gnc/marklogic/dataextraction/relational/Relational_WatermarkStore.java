@@ -0,0 +1,146 @@
+/*
+ * Copyright (c)2016 General Networks Corporation 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ * 
+ * The use of the Apache License does not indicate that this project is 
+ * affiliated with the Apache Software Foundation. 
+ */
+
+package org.gnc.marklogic.dataextraction.relational;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The high-water marks of the query file entries with a WATERMARK column, kept in a
+ * properties file from one extraction to the next.
+ *
+ * For every entry (known by its file name) the file holds the mark the last complete run
+ * went up to and the number of its delta. A run that has started but not completed is
+ * held as pending, so when it is run again it covers the same rows and writes the same
+ * delta files. The file is rewritten under a temporary name and renamed over the old one,
+ * so a crash leaves either the old marks or the new ones.
+ *
+ * @author Robert Kennedy, rkennedy@gennet.com
+ */
+public class Relational_WatermarkStore {
+
+    private static final String MARK = ".MARK";
+    private static final String DELTA = ".DELTA";
+    private static final String PENDING_AFTER = ".PENDING_AFTER";
+    private static final String PENDING_UP_TO = ".PENDING_UP_TO";
+    private static final String PENDING_DELTA = ".PENDING_DELTA";
+    private static final String CAST_TO_DATE = ".CAST_TO_DATE";
+
+    private final File file;
+    private final Properties marks = new Properties();
+
+    public Relational_WatermarkStore(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                marks.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @return the mark the last complete run of the entry went up to, null before its first run
+     */
+    public synchronized Object getMark(String fileName) {
+        return Relational_Checkpoint.decodeKey(marks.getProperty(fileName + MARK, ""));
+    }
+
+    /**
+     * @return true when the watermark of the entry is compared as an Oracle DATE
+     */
+    public synchronized boolean isCastToDate(String fileName) {
+        return Boolean.parseBoolean(marks.getProperty(fileName + CAST_TO_DATE));
+    }
+
+    /**
+     * @return the run of the entry that started but did not complete, null when there is none
+     */
+    public synchronized Relational_Watermark getPending(String fileName) {
+        String delta = marks.getProperty(fileName + PENDING_DELTA);
+        if (delta == null) {
+            return null;
+        }
+        return new Relational_Watermark(this, fileName, Relational_Checkpoint.decodeKey(marks.getProperty(fileName + PENDING_AFTER, "")),
+                Relational_Checkpoint.decodeKey(marks.getProperty(fileName + PENDING_UP_TO, "")), Long.parseLong(delta),
+                Boolean.parseBoolean(marks.getProperty(fileName + CAST_TO_DATE)));
+    }
+
+    /*
+     * Records a new run of the entry covering the rows after the current mark up to and including upTo
+     */
+    public synchronized Relational_Watermark begin(String fileName, Object upTo, boolean castToDate) throws IOException {
+        Object after = getMark(fileName);
+
+        // THE FIRST RUN IS THE FULL EXTRACT, EVERY RUN AFTER IT A NUMBERED DELTA
+        long delta = (after == null) ? 0 : Long.parseLong(marks.getProperty(fileName + DELTA, "0")) + 1;
+
+        marks.setProperty(fileName + PENDING_AFTER, Relational_Checkpoint.encodeKey(after));
+        marks.setProperty(fileName + PENDING_UP_TO, Relational_Checkpoint.encodeKey(upTo));
+        marks.setProperty(fileName + PENDING_DELTA, "" + delta);
+        marks.setProperty(fileName + CAST_TO_DATE, "" + castToDate);
+        save();
+        return new Relational_Watermark(this, fileName, after, upTo, delta, castToDate);
+    }
+
+    /*
+     * Moves the mark of the entry up once every row of the run is on disk
+     */
+    synchronized void commit(Relational_Watermark watermark) throws IOException {
+        String fileName = watermark.getFileName();
+        marks.setProperty(fileName + MARK, Relational_Checkpoint.encodeKey(watermark.getUpTo()));
+        marks.setProperty(fileName + DELTA, "" + watermark.getDelta());
+        marks.remove(fileName + PENDING_AFTER);
+        marks.remove(fileName + PENDING_UP_TO);
+        marks.remove(fileName + PENDING_DELTA);
+        save();
+    }
+
+    private void save() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            marks.store(out, "High-water marks of the WATERMARK entries - do not edit while an extraction is running");
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Relational_ChunkPolicy.syncDirectory(parent);
+    }
+}